@@ -0,0 +1,104 @@
+package Vessel_IB4_Bench;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+
+/**
+ * Synthetic 16-bit stacks of vessels and RNA dots for benchmarks
+ * Same seed gives same stack
+ * @author ORION-CIRB
+ */
+public class SyntheticStack {
+    
+    private static final int BACKGROUND = 100;
+    private static final double NOISE = 10;
+    
+    
+    /**
+     * Stack with nbVessels straight tubes of random radius (3 to 8 pixels) and orientation
+     */
+    public static ImagePlus vessels(int width, int height, int depth, int nbVessels, long seed) {
+        Random rnd = new Random(seed);
+        float[][] data = background(width, height, depth, rnd);
+        for (int n = 0; n < nbVessels; n++) {
+            double x0 = rnd.nextDouble()*width, y0 = rnd.nextDouble()*height, z0 = rnd.nextDouble()*depth;
+            double x1 = rnd.nextDouble()*width, y1 = rnd.nextDouble()*height, z1 = rnd.nextDouble()*depth;
+            double radius = 3 + 5*rnd.nextDouble();
+            double length = Math.sqrt((x1-x0)*(x1-x0) + (y1-y0)*(y1-y0) + (z1-z0)*(z1-z0));
+            for (double t = 0; t <= 1; t += 0.5/Math.max(1, length))
+                addSphere(data, width, height, x0+t*(x1-x0), y0+t*(y1-y0), z0+t*(z1-z0), radius, 1000);
+        }
+        return(toImage("vessels", data, width, height));
+    }
+    
+    
+    /**
+     * Stack with nbDots Gaussian spots of sigma 1 to 1.5 pixels
+     */
+    public static ImagePlus dots(int width, int height, int depth, int nbDots, long seed) {
+        Random rnd = new Random(seed);
+        float[][] data = background(width, height, depth, rnd);
+        for (int n = 0; n < nbDots; n++) {
+            int xc = rnd.nextInt(width), yc = rnd.nextInt(height), zc = rnd.nextInt(depth);
+            double sigma = 1 + 0.5*rnd.nextDouble();
+            int r = (int) Math.ceil(3*sigma);
+            for (int z = Math.max(0, zc-r); z <= Math.min(depth-1, zc+r); z++)
+                for (int y = Math.max(0, yc-r); y <= Math.min(height-1, yc+r); y++)
+                    for (int x = Math.max(0, xc-r); x <= Math.min(width-1, xc+r); x++) {
+                        double d2 = (x-xc)*(x-xc) + (y-yc)*(y-yc) + (z-zc)*(z-zc);
+                        data[z][x+y*width] += 500*Math.exp(-d2/(2*sigma*sigma));
+                    }
+        }
+        return(toImage("dots", data, width, height));
+    }
+    
+    
+    /**
+     * Calibration used with synthetic stacks
+     */
+    public static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = 0.5;
+        cal.pixelDepth = 1;
+        cal.setUnit("microns");
+        return(cal);
+    }
+    
+    
+    private static float[][] background(int width, int height, int depth, Random rnd) {
+        float[][] data = new float[depth][width*height];
+        for (float[] plane: data)
+            for (int i = 0; i < plane.length; i++)
+                plane[i] = (float) (BACKGROUND + NOISE*rnd.nextGaussian());
+        return(data);
+    }
+    
+    
+    private static void addSphere(float[][] data, int width, int height, double xc, double yc, double zc, double radius, float value) {
+        int r = (int) Math.ceil(radius);
+        for (int z = Math.max(0, (int) zc-r); z <= Math.min(data.length-1, (int) zc+r); z++)
+            for (int y = Math.max(0, (int) yc-r); y <= Math.min(height-1, (int) yc+r); y++)
+                for (int x = Math.max(0, (int) xc-r); x <= Math.min(width-1, (int) xc+r); x++)
+                    if ((x-xc)*(x-xc) + (y-yc)*(y-yc) + (z-zc)*(z-zc) <= radius*radius)
+                        data[z][x+y*width] = Math.max(data[z][x+y*width], BACKGROUND + value);
+    }
+    
+    
+    private static ImagePlus toImage(String title, float[][] data, int width, int height) {
+        ImageStack stack = new ImageStack(width, height);
+        for (float[] plane: data) {
+            short[] pixels = new short[plane.length];
+            for (int i = 0; i < plane.length; i++)
+                pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(plane[i])));
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setCalibration(calibration());
+        return(img);
+    }
+}
@@ -0,0 +1,193 @@
+package Vessel_IB4_Bench;
+
+
+import Vessel_IB4_Tools.DistanceMap;
+import Vessel_IB4_Tools.DotStore;
+import Vessel_IB4_Tools.ObjectsMeasure;
+import Vessel_IB4_Tools.RoiMask;
+import Vessel_IB4_Tools.RunLabeller;
+import Vessel_IB4_Tools.Tools;
+import ij.ImagePlus;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks of Tools pipeline stages on synthetic stacks
+ * Tiled and slab variants run with blockSize 128 and slabDepth 8, their work stacks in the system temporary folder
+ * Run with gc profiler to get allocation rates:
+ * mvn -P benchmark package exec:exec
+ * @author ORION-CIRB
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+@State(Scope.Benchmark)
+public class ToolsBenchmark {
+    
+    @Param({"512"})
+    public int sizeXY;
+    
+    @Param({"32"})
+    public int sizeZ;
+    
+    @Param({"20"})
+    public int nbVessels;
+    
+    @Param({"2000"})
+    public int nbDots;
+    
+    private Tools tools;
+    private Tools tiledTools;
+    private Tools slabTools;
+    private RoiMask roiMask;
+    private ImagePlus imgDots;
+    private ImagePlus imgVessels;
+    private ImagePlus imgDotsDOG;
+    private float dotsTh;
+    private DotStore dots;
+    private Objects3DIntPopulation vesselsPop;
+    
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tools = new Tools();
+        tools.cal = SyntheticStack.calibration();
+        tools.pixVol = tools.cal.pixelWidth*tools.cal.pixelHeight*tools.cal.pixelDepth;
+        tiledTools = new Tools(tools);
+        tiledTools.blockSize = 128;
+        slabTools = new Tools(tools);
+        slabTools.slabDepth = 8;
+        // No ROI file
+        roiMask = RoiMask.load("", sizeXY, sizeXY);
+        
+        imgDots = SyntheticStack.dots(sizeXY, sizeXY, sizeZ, nbDots, 1);
+        imgDotsDOG = tools.DOG(imgDots, 1, 2);
+        dotsTh = tools.histogram(imgDotsDOG.getStack()).thresholdValue("Triangle");
+        dots = tools.getDotsFromLabeller(tools.label(imgDotsDOG.getStack(), dotsTh, roiMask), imgDots, 0.04, 20);
+        
+        imgVessels = SyntheticStack.vessels(sizeXY, sizeXY, sizeZ, nbVessels, 2);
+        float vesselsTh = tools.histogram(imgVessels.getStack()).thresholdValue("Triangle");
+        vesselsPop = tools.getPopFromLabeller(tools.label(imgVessels.getStack(), vesselsTh, roiMask), null, 400, Double.MAX_VALUE);
+    }
+    
+    
+    @Setup(Level.Invocation)
+    public void clearMeasures() {
+        // Measures are cached per population, start each call from scratch
+        tools.clearMeasures();
+    }
+    
+    
+    @Benchmark
+    public ImagePlus DOG() {
+        return(tools.DOG(imgDots, 1, 2));
+    }
+    
+    
+    @Benchmark
+    public ImagePlus LOG() {
+        return(tools.LOG(imgVessels, 20));
+    }
+    
+    
+    /**
+     * Filtered image, scratch file of tiled filters closed
+     */
+    private static ImagePlus filtered(Tools tools, ImagePlus img) {
+        tools.flushCloseImg(img);
+        return(img);
+    }
+    
+    
+    @Benchmark
+    public ImagePlus filterGenes() {
+        return(filtered(tools, tools.filterGenes(imgDots)));
+    }
+    
+    
+    @Benchmark
+    public ImagePlus filterGenesTiled() {
+        return(filtered(tiledTools, tiledTools.filterGenes(imgDots)));
+    }
+    
+    
+    @Benchmark
+    public ImagePlus filterVessels() {
+        return(filtered(tools, tools.filterVessels(imgVessels)));
+    }
+    
+    
+    @Benchmark
+    public ImagePlus filterVesselsTiled() {
+        return(filtered(tiledTools, tiledTools.filterVessels(imgVessels)));
+    }
+    
+    
+    @Benchmark
+    public float threshold() {
+        return(tools.histogram(imgDotsDOG.getStack()).thresholdValue("Triangle"));
+    }
+    
+    
+    @Benchmark
+    public RunLabeller label() {
+        return(tools.label(imgDotsDOG.getStack(), dotsTh, roiMask));
+    }
+    
+    
+    @Benchmark
+    public DotStore findGenes() {
+        return(tools.findGenes(imgDots, roiMask));
+    }
+    
+    
+    @Benchmark
+    public DotStore findGenesBySlab() {
+        return(slabTools.findGenes(imgDots, roiMask));
+    }
+    
+    
+    @Benchmark
+    public DistanceMap.Columns vesselsDistance() {
+        return(tools.vesselsDistance(vesselsPop, imgDots, Arrays.asList(dots)));
+    }
+    
+    
+    @Benchmark
+    public List<DotStore> findGeneXInOutVessels() {
+        return(tools.findGeneXInOutVessels(dots, vesselsPop, imgDots));
+    }
+    
+    
+    /**
+     * Vessels measured with geneX intensities, as for results
+     */
+    @Benchmark
+    public ObjectsMeasure measureVessels() {
+        return(tools.getMeasure(vesselsPop, imgDots));
+    }
+    
+    
+    @Benchmark
+    public double findBackground() {
+        return(tools.findBackground(imgDots));
+    }
+}
@@ -1,12 +1,19 @@
 package Vessel_IB4;
 
 
+import Vessel_IB4_Tools.DotStore;
+import Vessel_IB4_Tools.ResultCache;
+import Vessel_IB4_Tools.RoiMask;
+import Vessel_IB4_Tools.ShardedBatch;
 import Vessel_IB4_Tools.Tools;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
+import ij.Macro;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.logging.Level;
@@ -18,17 +25,23 @@ import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
 import loci.plugins.util.ImageProcessorReader;
-import loci.plugins.BF;
 import ij.plugin.PlugIn;
-import ij.plugin.frame.RoiManager;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.util.ArrayList;
-import loci.plugins.in.ImporterOptions;
+import java.util.HashSet;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.ArrayUtils;
-import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import mcib3d.geom2.Objects3DIntPopulation;
 
 
@@ -42,121 +55,411 @@ public class Vessel_IB4 implements PlugIn {
     private Vessel_IB4_Tools.Tools tools = new Tools();
    
     public void run(String arg) {
+            if (!tools.checkInstalledModules()) {
+                return;
+            } 
+            
+            // Parameters file given as macro option: run("Vessel IB4", "params=[/path/to/parameters.properties]")
+            String options = Macro.getOptions();
+            String paramsFile = (options == null) ? null : Macro.getValue(options, "params", null);
+            Properties params = null;
+            String imageDir;
             try {
-                if (!tools.checkInstalledModules()) {
-                    return;
-                } 
-                
-                String imageDir = IJ.getDirectory("Choose directory containing image files...");
+                if (paramsFile != null) {
+                    params = loadProperties(paramsFile);
+                    imageDir = params.getProperty("input");
+                } else {
+                    imageDir = IJ.getDirectory("Choose directory containing image files...");
+                }
                 if (imageDir == null) {
                     return;
                 }
-                
-                // Find images with extension
-                String fileExt = tools.findImageType(new File(imageDir));
-                ArrayList<String> imageFiles = tools.findImages(imageDir, fileExt);
-                if (imageFiles == null) {
-                    IJ.showMessage("Error", "No images found with " + fileExt + " extension");
-                    return;
-                }                       
-               
-                // Create OME-XML metadata store of the latest schema version
-                ServiceFactory factory;
-                factory = new ServiceFactory();
-                OMEXMLService service = factory.getInstance(OMEXMLService.class);
-                IMetadata meta = service.createOMEXMLMetadata();
-                ImageProcessorReader reader = new ImageProcessorReader();
-                reader.setMetadataStore(meta);
-                reader.setId(imageFiles.get(0));
-                
-                // Find image calibration
-                tools.findImageCalib(meta);
+                analyzeFolder(imageDir, (params == null) ? null : params.getProperty("output"), params);
+            } catch (IOException | DependencyException | ServiceException | FormatException ex) {
+                    Logger.getLogger(Vessel_IB4.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    
+    
+    /**
+     * Headless batch analysis
+     * Usage: java -cp <Fiji jars> Vessel_IB4.Vessel_IB4 parameters.properties [key=value ...]
+     * Keys are those of Results/parameters.properties written by an interactive run, 
+     * plus input (images folder) and output (results folder, default input/Results)
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 1) {
+            System.err.println("Usage: Vessel_IB4 parameters.properties [key=value ...]");
+            System.exit(2);
+        }
+        try {
+            Properties params = loadProperties(args[0]);
+            for (int i = 1; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                if (eq < 0)
+                    throw new IllegalArgumentException("Expected key=value, got " + args[i]);
+                params.setProperty(args[i].substring(0, eq), args[i].substring(eq+1));
+            }
+            if (params.getProperty("input") == null)
+                throw new IllegalArgumentException("No input folder given");
+            
+            Vessel_IB4 plugin = new Vessel_IB4();
+            if (!plugin.tools.checkInstalledModules())
+                System.exit(1);
+            System.exit(plugin.analyzeFolder(params.getProperty("input"), params.getProperty("output"), params) ? 0 : 1);
+        } catch (Exception ex) {
+            Logger.getLogger(Vessel_IB4.class.getName()).log(Level.SEVERE, null, ex);
+            System.exit(1);
+        }
+    }
+    
+    
+    private static Properties loadProperties(String file) throws IOException {
+        Properties params = new Properties();
+        try (Reader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            params.load(in);
+        }
+        return(params);
+    }
+    
+    
+    /**
+     * Analyze all images of imageDir, results are written in outDirResults (imageDir/Results if null)
+     * Parameters are asked in dialog box if params is null
+     * Return true if all images were analyzed
+     */
+    public boolean analyzeFolder(String imageDir, String outDirResults, Properties params) throws IOException, DependencyException, ServiceException, FormatException {
+            // Find images with extension
+            String fileExt = tools.findImageType(new File(imageDir));
+            ArrayList<String> imageFiles = tools.findImages(imageDir, fileExt);
+            if (imageFiles == null) {
+                IJ.showMessage("Error", "No images found with " + fileExt + " extension");
+                return(false);
+            }                       
 
-                // Find channel names
-                String[] channels = tools.findChannels(imageFiles.get(0), meta, reader);
-                
-                // Dialog box
-                String[] chs = tools.dialog(channels);
-                if (chs == null) {
-                    IJ.showStatus("Plugin canceled");
-                    return;
+            // Results folder
+            if (outDirResults == null)
+                outDirResults = imageDir + File.separator+ "Results"+ File.separator;
+            else if (!outDirResults.endsWith(File.separator))
+                outDirResults += File.separator;
+            
+            // Merge partial results of shards only
+            if (params != null && Boolean.parseBoolean(params.getProperty("merge", "false")))
+                return(ShardedBatch.merge(outDirResults, imageFiles));
+            
+            // Create OME-XML metadata store of the latest schema version
+            ServiceFactory factory;
+            factory = new ServiceFactory();
+            OMEXMLService service = factory.getInstance(OMEXMLService.class);
+            IMetadata meta = service.createOMEXMLMetadata();
+            ImageProcessorReader reader = new ImageProcessorReader();
+            reader.setMetadataStore(meta);
+            reader.setId(imageFiles.get(0));
+
+            // Find image calibration
+            tools.findImageCalib(meta);
+
+            // Find channel names
+            String[] channels = tools.findChannels(imageFiles.get(0), meta, reader);
+            reader.close();
+
+            // Dialog box or parameters file
+            String[] chs = (params == null) ? tools.dialog(channels) : tools.loadParams(params, channels);
+            if (chs == null) {
+                IJ.showStatus("Plugin canceled");
+                return(false);
+            }
+
+            // Create output folder
+            File outDir = new File(outDirResults);
+            if (!Files.exists(Paths.get(outDirResults))) {
+                outDir.mkdirs();
+            }
+            
+            // Shard of a folder analysis split between several processes
+            int shardCount = (params == null) ? 1 : Integer.parseInt(params.getProperty("shard.count", "1"));
+            int shardIndex = (params == null) ? 0 : Integer.parseInt(params.getProperty("shard.index", "0"));
+            ShardedBatch shards = (shardCount > 1) ? new ShardedBatch(outDirResults, shardIndex, shardCount, 
+                    Double.parseDouble(params.getProperty("shard.lockTimeout", "120"))) : null;
+            
+            // Save parameters, to rerun the analysis headless
+            if (shardIndex == 0) {
+                Properties usedParams = tools.saveParams(chs);
+                usedParams.setProperty("input", imageDir);
+                usedParams.setProperty("output", outDirResults);
+                try (Writer out = Files.newBufferedWriter(Paths.get(outDirResults, "parameters.properties"), StandardCharsets.UTF_8)) {
+                    usedParams.store(out, "Vessel_IB4 " + ResultCache.getVersion());
                 }
-                
-                // Create output folder
-                String outDirResults = imageDir + File.separator+ "Results"+ File.separator;
-                File outDir = new File(outDirResults);
-                if (!Files.exists(Paths.get(outDirResults))) {
-                    outDir.mkdir();
+            }
+
+            // Write header in results file, partial results file of a shard is appended to when it is restarted
+            String resultsFile = (shards == null) ? outDirResults + "results.xls" : shards.getPartialFile();
+            boolean append = (shards != null) && new File(resultsFile).exists();
+            FileWriter fwResults = new FileWriter(resultsFile, append);
+            BufferedWriter results = new BufferedWriter(fwResults);
+            if (!append)
+                results.write((tools.sweep != null) ? tools.sweep.getHeader() : Tools.RESULTS_HEADER);
+            results.flush();
+
+            // Analyze images in parallel, within memory budget
+            // Reader threads decode next images while workers analyze previous ones, 
+            // at most nbWorkers + prefetch images are read and not yet analyzed
+            ExecutorService readers = Executors.newFixedThreadPool(tools.nbWorkers);
+            ExecutorService pool = Executors.newFixedThreadPool(tools.nbWorkers);
+            int budget = (int) (tools.memoryBudget * 1024);
+            Semaphore memory = new Semaphore(budget);
+            Semaphore slots = new Semaphore(tools.nbWorkers + tools.prefetch, true);
+            ResultCache cache = new ResultCache(outDirResults);
+            String outDirImages = outDirResults;
+            List<String> jobFiles = (shards == null) ? imageFiles : shards.order(imageFiles);
+            // Images that failed in this process, not retried by its shard
+            Set<String> failed = new HashSet<>();
+            boolean allDone = true;
+            while (!jobFiles.isEmpty()) {
+                List<Future<String>> jobs = new ArrayList<>();
+                for (String f: jobFiles) {
+                    Tools jobTools = new Tools(tools);
+                    jobs.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return(readImage(jobTools, f, imageDir, outDirImages, channels, chs, memory, budget, slots, cache, shards));
+                        } catch (Exception ex) {
+                            throw new CompletionException(ex);
+                        }
+                    }, readers).thenApplyAsync(image -> {
+                        try {
+                            return(analyzeImage(jobTools, image, outDirImages, memory, slots, cache, shards, results));
+                        } catch (Exception ex) {
+                            throw new CompletionException(ex);
+                        }
+                    }, pool));
                 }
+
+                // Write results in images order, shards write them as soon as an image is done
+                int nbClaimed = 0;
+                for (int i = 0; i < jobs.size(); i++) {
+                    try {
+                        String rows = jobs.get(i).get();
+                        if (rows != null)
+                            nbClaimed++;
+                        if (shards == null) {
+                            results.write(rows);
+                            results.flush();
+                        }
+                    } catch (InterruptedException | ExecutionException ex) {
+                        Logger.getLogger(Vessel_IB4.class.getName()).log(Level.SEVERE, "Analysis failed for " + jobFiles.get(i), ex);
+                        failed.add(jobFiles.get(i));
+                        allDone = false;
+                    }
+                }
+                if (shards == null)
+                    break;
                 
-                // Write header in results file
-                FileWriter fwResults = new FileWriter(outDirResults +"results.xls",false);
-                BufferedWriter results = new BufferedWriter(fwResults);
-                results.write("Image name\tImage vol (µm3)\tImage-ROI vol (µm3)\tVessels vol (µm3)\tGeneX channel bg\tNb GeneX dots in vessels\tGeneX dots vol in vessels (µm3)\t"
-                        + "GeneX dots int in vessels\tGeneX dots bg corr int in vessels\tNb GeneX dots out vessels\tGeneX dots vol out vessels (µm3)\tGeneX dots int out vessels"
-                        + "\tGeneX dots bg corr int out vessels\n");
-                results.flush();
-                
-                
-                for (String f: imageFiles) {
-                    String rootName = FilenameUtils.getBaseName(f);
-                    tools.print("--- ANALYZING IMAGE " + rootName + " ------");
-                    reader.setId(f);
-                    
-                    ImporterOptions options = new ImporterOptions();
-                    options.setId(f);
-                    options.setSplitChannels(true);
-                    options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
-                    options.setQuiet(true);
-
-                    // Check if rois file exist, keep rois to clear regions containing "artefacts"
-                    ArrayList<Roi> rois = new ArrayList<>();
-                    String roiRootName = imageDir + File.separator + rootName; 
-                    String roiName = new File(roiRootName + ".zip").exists() ? roiRootName + ".zip" : roiRootName + ".roi";
-                    if (new File(roiName).exists()) {
-                        RoiManager rm = new RoiManager(false);
-                        if (rm != null)
-                            rm.reset();
-                        else
-                            rm = new RoiManager(false);
-                        rm.runCommand("Open", roiName);
-                        Collections.addAll(rois, rm.getRoisAsArray());
+                // Shards claim again images not done, being analyzed by other shards or left by a crashed one
+                jobFiles = shards.pending(imageFiles);
+                jobFiles.removeAll(failed);
+                if (!jobFiles.isEmpty() && nbClaimed == 0) {
+                    tools.print("Shard " + shardIndex + " waiting for " + jobFiles.size() + " images analyzed by other shards");
+                    try {
+                        shards.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
                     }
+                }
+            }
+            // Analysis tasks are submitted when their image is read, pools are stopped once all are done
+            readers.shutdown();
+            pool.shutdown();
+            results.close();
+            
+            // Shards merge partial results once all images are done, images failed here may have been done by others
+            if (shards != null) {
+                shards.close();
+                if (!shards.allDone(imageFiles)) {
+                    tools.print("Shard " + shardIndex + " done, some images failed");
+                    return(false);
+                }
+                allDone = shards.merge(imageFiles);
+            }
+            tools.print("All done!");
+            return(allDone);
+        }
+    
+    
+    /**
+     * An image read ahead, waiting to be analyzed
+     */
+    private static class ReadImage {
+        final String rootName;
+        String cacheKey;
+        // Results rows if image did not change, nothing else is read
+        String cachedRows = null;
+        RoiMask roiMask;
+        ImagePlus imgVessel, imgGeneX;
+        int memNeeded = 0;
+        
+        ReadImage(String rootName) {
+            this.rootName = rootName;
+        }
+    }
+    
+    
+    /**
+     * Read one image with its own reader, in a reader thread
+     * Channels are decoded once a prefetch slot and enough memory are free, both are released after analysis
+     * Return null if image was claimed by another shard
+     */
+    private ReadImage readImage(Tools tools, String f, String imageDir, String outDirResults, String[] channels, String[] chs, 
+            Semaphore memory, int budget, Semaphore slots, ResultCache cache, ShardedBatch shards) throws Exception {
+        ReadImage image = new ReadImage(FilenameUtils.getBaseName(f));
+        if (shards != null && !shards.claim(image.rootName))
+            return(null);
+        ImageProcessorReader reader = new ImageProcessorReader();
+        boolean acquired = false;
+        try {
+            reader.setId(f);
+
+            // Check if rois file exist, keep rois mask to clear regions containing "artefacts"
+            String roiRootName = imageDir + File.separator + image.rootName; 
+            String roiName = new File(roiRootName + ".zip").exists() ? roiRootName + ".zip" : roiRootName + ".roi";
+
+            // Reuse previous results row, objects tables and overlay if inputs did not change
+            image.cacheKey = ResultCache.key(tools.getParams() + "\t" + String.join(",", chs), reader.getUsedFiles(), roiName);
+            List<String> outputs = new ArrayList<>();
+            if (tools.sweep == null) {
+                outputs.add(outDirResults + image.rootName + "_vessels.csv");
+                outputs.add(outDirResults + image.rootName + "_dots.csv");
+                if (tools.saveOverlays)
+                    outputs.add(outDirResults + image.rootName + ".tif");
+            }
+            image.cachedRows = cache.get(image.rootName, image.cacheKey, outputs.toArray(new String[0]));
+            if (image.cachedRows != null) {
+                tools.print("--- SKIPPING UNCHANGED IMAGE " + image.rootName + " ------");
+                return(image);
+            }
+
+            // Wait for a prefetch slot and enough memory to be available
+            image.memNeeded = Math.min(tools.estimateMemory(reader), budget);
+            slots.acquire();
+            try {
+                memory.acquire(image.memNeeded);
+            } catch (InterruptedException ex) {
+                slots.release();
+                throw ex;
+            }
+            acquired = true;
+            
+            tools.metrics.attach();
+            tools.print("--- READING IMAGE " + image.rootName + " ------");
+            image.roiMask = RoiMask.load(roiName, reader.getSizeX(), reader.getSizeY());
 
-                    // Open vessels channel
-                    tools.print("- Analyzing vessels channel -");
-                    int indexCh = ArrayUtils.indexOf(channels, chs[0]);
-                    ImagePlus imgVessel = BF.openImagePlus(options)[indexCh];
-                    Objects3DIntPopulation vesselsPop = tools.findVessels(imgVessel, rois);
-
-                    // Open geneX channel
-                    tools.print("- Analyzing geneX channel -");
-                    indexCh = ArrayUtils.indexOf(channels, chs[1]);
-                    ImagePlus imgGeneX = BF.openImagePlus(options)[indexCh];
-                    Objects3DIntPopulation geneXPop = tools.findGenes(imgGeneX, rois);
-                    
-                    // Find geneX dots into and out of vessels
-                    List<Objects3DIntPopulation> geneXInOutPops = tools.findGeneXInOutVessels(geneXPop, vesselsPop, imgGeneX);
-                    Objects3DIntPopulation geneXInPop = geneXInOutPops.get(0);
-                    System.out.println(geneXInPop.getNbObjects() + " geneX dots found into vessels");
-                    Objects3DIntPopulation geneXOutPop = geneXInOutPops.get(1);
-                    System.out.println(geneXOutPop.getNbObjects() + " geneX dots found out of vessels");
-
-                    // Draw results
-                    tools.print("- Drawing and writing results -");
-                    tools.drawResults(imgGeneX, vesselsPop, geneXInPop, geneXOutPop, outDirResults, rootName);
-
-                    // Write results
-                    tools.writeResults(results, vesselsPop, geneXInPop, geneXOutPop, imgGeneX, rois, rootName);
-                    
-                    tools.flushCloseImg(imgVessel);
-                    tools.flushCloseImg(imgGeneX);
+            // Open vessels and geneX channels in a single pass
+            int[] indexChs = {ArrayUtils.indexOf(channels, chs[0]), ArrayUtils.indexOf(channels, chs[1])};
+            ImagePlus[] imgChs = tools.openChannels(reader, indexChs);
+            image.imgVessel = imgChs[0];
+            image.imgGeneX = imgChs[1];
+            return(image);
+        } catch (Exception ex) {
+            if (acquired) {
+                memory.release(image.memNeeded);
+                slots.release();
+            }
+            if (shards != null)
+                shards.release(image.rootName);
+            throw ex;
+        } finally {
+            tools.metrics.detach();
+            reader.close();
+        }
+    }
+    
+    
+    /**
+     * Analyze one image read by readImage, in a worker thread
+     * Shards write results row in their results file as soon as the image is done
+     * Return results row, null if image was claimed by another shard
+     */
+    private String analyzeImage(Tools tools, ReadImage image, String outDirResults, Semaphore memory, Semaphore slots, 
+            ResultCache cache, ShardedBatch shards, BufferedWriter results) throws Exception {
+        if (image == null)
+            return(null);
+        String rootName = image.rootName;
+        try {
+            String rows = (image.cachedRows != null) ? image.cachedRows : analyzeChannels(tools, image, outDirResults, cache);
+            if (shards != null) {
+                synchronized (results) {
+                    results.write(rows);
+                    results.flush();
                 }
-                results.close();
-            } catch (IOException | DependencyException | ServiceException | FormatException ex) {
-                    Logger.getLogger(Vessel_IB4.class.getName()).log(Level.SEVERE, null, ex);
+                shards.done(rootName);
+            }
+            return(rows);
+        } catch (Exception ex) {
+            if (shards != null)
+                shards.release(rootName);
+            throw ex;
+        } finally {
+            if (image.cachedRows == null) {
+                memory.release(image.memNeeded);
+                slots.release();
+            }
+        }
+    }
+    
+    
+    /**
+     * Detect vessels and geneX dots of an image, save its objects and cache its results rows
+     */
+    private String analyzeChannels(Tools tools, ReadImage image, String outDirResults, ResultCache cache) throws IOException {
+        String rootName = image.rootName;
+        ImagePlus imgVessel = image.imgVessel;
+        ImagePlus imgGeneX = image.imgGeneX;
+        tools.metrics.attach();
+        try {
+            tools.print("--- ANALYZING IMAGE " + rootName + " ------");
+
+            // Sweep settings, overlays are not drawn
+            if (tools.sweep != null) {
+                String resultsRows = tools.sweep.run(tools, imgVessel, imgGeneX, image.roiMask, rootName);
+                tools.flushCloseImg(imgVessel);
+                tools.flushCloseImg(imgGeneX);
+                tools.saveMetrics(outDirResults, rootName);
+                cache.put(rootName, image.cacheKey, resultsRows);
+                return(resultsRows);
             }
+            
+            // Analyze vessels channel
+            tools.print("- Analyzing vessels channel -");
+            Objects3DIntPopulation vesselsPop = tools.findVessels(imgVessel, image.roiMask);
 
-            tools.print("All done!");
+            // Analyze geneX channel
+            tools.print("- Analyzing geneX channel -");
+            DotStore geneX = tools.findGenes(imgGeneX, image.roiMask);
+
+            // Find geneX dots into and out of vessels
+            List<DotStore> geneXInOut = tools.findGeneXInOutVessels(geneX, vesselsPop, imgGeneX);
+            DotStore geneXIn = geneXInOut.get(0);
+            System.out.println(geneXIn.getNbObjects() + " geneX dots found into vessels");
+            DotStore geneXOut = geneXInOut.get(1);
+            System.out.println(geneXOut.getNbObjects() + " geneX dots found out of vessels");
+
+            // Draw results
+            tools.print("- Drawing and writing results -");
+            if (tools.saveOverlays)
+                tools.drawResults(imgGeneX, vesselsPop, geneXIn, geneXOut, outDirResults, rootName);
+
+            // Objects tables and results row
+            tools.saveObjects(vesselsPop, geneXIn, geneXOut, imgGeneX, outDirResults, rootName);
+            String resultsRow = tools.formatResults(vesselsPop, geneXIn, geneXOut, imgGeneX, image.roiMask, rootName);
+
+            tools.flushCloseImg(imgVessel);
+            tools.flushCloseImg(imgGeneX);
+            tools.saveMetrics(outDirResults, rootName);
+            cache.put(rootName, image.cacheKey, resultsRow);
+            return(resultsRow);
+        } finally {
+            tools.metrics.detach();
         }
+    }
 }
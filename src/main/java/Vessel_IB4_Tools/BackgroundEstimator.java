@@ -0,0 +1,114 @@
+package Vessel_IB4_Tools;
+
+
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+
+/**
+ * Image background as the median of the minimum intensity Z projection
+ * Minimum is updated plane by plane while the stack is read, so no projection image is built
+ * Median is selected with histograms instead of sorting all pixels
+ * @author ORION-CIRB
+ */
+public class BackgroundEstimator {
+
+    private static final int NBINS = 65536;
+
+    private final float[] min;
+    private boolean integer = true;
+    private int nbPlanes = 0;
+    // Median of planes added so far, NaN until computed
+    private double median = Double.NaN;
+
+
+    public BackgroundEstimator(int width, int height) {
+        min = new float[width*height];
+        Arrays.fill(min, Float.MAX_VALUE);
+    }
+
+
+    /**
+     * Update minimum with a plane
+     */
+    public void add(ImageProcessor ip) {
+        if (ip.getBitDepth() == 32)
+            integer = false;
+        for (int i = 0; i < min.length; i++) {
+            float v = ip.getf(i);
+            if (v < min[i])
+                min[i] = v;
+        }
+        nbPlanes++;
+        median = Double.NaN;
+    }
+
+
+    /**
+     * Number of planes added
+     */
+    public int getNbPlanes() {
+        return(nbPlanes);
+    }
+
+
+    /**
+     * Median of minimum projection, as ImageJ statistics:
+     * value of rank n/2 in increasing order for 8 and 16-bit images, 
+     * mean of the two middle values for 32-bit images of even size
+     */
+    public double getMedian() {
+        if (Double.isNaN(median))
+            median = computeMedian();
+        return(median);
+    }
+
+
+    private double computeMedian() {
+        int rank = min.length / 2;
+        if (integer) {
+            // 8 and 16-bit values are exact bins
+            int[] histo = new int[NBINS];
+            for (float v: min)
+                histo[(int) v]++;
+            int sum = 0;
+            for (int bin = 0; bin < NBINS; bin++) {
+                sum += histo[bin];
+                if (sum > rank)
+                    return(bin);
+            }
+        }
+        if (min.length % 2 == 0)
+            return((select(rank - 1) + select(rank)) / 2.0);
+        return(select(rank));
+    }
+
+
+    /**
+     * Float value of rank in increasing order
+     * Finds the histogram bin holding rank, then sorts only the values of that bin
+     */
+    private float select(int rank) {
+        float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+        for (float v: min) {
+            if (v < lo) lo = v;
+            if (v > hi) hi = v;
+        }
+        if (hi <= lo)
+            return(lo);
+        double scale = (NBINS - 1) / ((double) hi - lo);
+        int[] histo = new int[NBINS];
+        for (float v: min)
+            histo[(int) ((v - lo) * scale)]++;
+        int bin = 0, below = 0;
+        while (below + histo[bin] <= rank)
+            below += histo[bin++];
+        float[] values = new float[histo[bin]];
+        int n = 0;
+        for (float v: min)
+            if ((int) ((v - lo) * scale) == bin)
+                values[n++] = v;
+        Arrays.sort(values);
+        return(values[rank - below]);
+    }
+}
@@ -0,0 +1,83 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+
+/**
+ * Split an image into XYZ blocks processed one at a time
+ * Each block is filtered with a halo wide enough for the filter kernel,
+ * only its core is kept in the result
+ * @author ORION-CIRB
+ */
+public class BlockTiler {
+
+    private final int width, height, depth;
+    private final int haloXY, haloZ;
+    // Blocks cores as {x, y, z, width, height, depth}
+    private final List<int[]> blocks = new ArrayList<>();
+
+
+    public BlockTiler(ImagePlus img, int blockSize, int haloXY, int haloZ) {
+        width = img.getWidth();
+        height = img.getHeight();
+        depth = img.getNSlices();
+        this.haloXY = haloXY;
+        this.haloZ = haloZ;
+        int size = (blockSize > 0) ? blockSize : Math.max(width, Math.max(height, depth));
+        for (int z = 0; z < depth; z += size)
+            for (int y = 0; y < height; y += size)
+                for (int x = 0; x < width; x += size)
+                    blocks.add(new int[]{x, y, z, Math.min(size, width-x), Math.min(size, height-y), Math.min(size, depth-z)});
+    }
+
+
+    /**
+     * Return true if image is split into more than one block
+     */
+    public boolean isTiled() {
+        return(blocks.size() > 1);
+    }
+
+
+    /**
+     * Apply filter block by block, blocks cores being written plane by plane into the stack
+     * returned by createOut for the filter output bit depth, such as a ScratchStack
+     * Filter intermediate images and GPU buffers are bounded by block + halo size
+     */
+    public ImagePlus filter(ImagePlus img, Function<ImagePlus, ImagePlus> filter, IntFunction<ImageStack> createOut) {
+        ImageStack stackOut = null;
+        for (int[] b: blocks) {
+            int x0 = Math.max(0, b[0]-haloXY), x1 = Math.min(width, b[0]+b[3]+haloXY);
+            int y0 = Math.max(0, b[1]-haloXY), y1 = Math.min(height, b[1]+b[4]+haloXY);
+            int z0 = Math.max(0, b[2]-haloZ), z1 = Math.min(depth, b[2]+b[5]+haloZ);
+            ImagePlus imgBlock = new ImagePlus("block", img.getStack().crop(x0, y0, z0, x1-x0, y1-y0, z1-z0));
+            imgBlock.setCalibration(img.getCalibration());
+            ImagePlus imgBlockFilter = filter.apply(imgBlock);
+            if (stackOut == null)
+                stackOut = createOut.apply(imgBlockFilter.getBitDepth());
+
+            // Keep block core only
+            for (int z = b[2]; z < b[2]+b[5]; z++) {
+                ImageProcessor ip = imgBlockFilter.getStack().getProcessor(z-z0+1);
+                ip.setRoi(b[0]-x0, b[1]-y0, b[3], b[4]);
+                ImageProcessor ipOut = stackOut.getProcessor(z+1);
+                ipOut.insert(ip.crop(), b[0], b[1]);
+                stackOut.setPixels(ipOut.getPixels(), z+1);
+            }
+            imgBlock.flush();
+            if (imgBlockFilter.getStack() instanceof ScratchStack)
+                ((ScratchStack) imgBlockFilter.getStack()).close();
+            imgBlockFilter.flush();
+        }
+        ImagePlus imgOut = new ImagePlus(img.getTitle(), stackOut);
+        imgOut.setCalibration(img.getCalibration());
+        return(imgOut);
+    }
+}
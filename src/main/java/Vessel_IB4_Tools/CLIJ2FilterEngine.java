@@ -0,0 +1,50 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Filters computed on the OpenCL device with CLIJ2
+ * Calls are serialized, the device is shared by all analysis threads
+ * @author ORION-CIRB
+ */
+public class CLIJ2FilterEngine implements FilterEngine {
+    
+    private final CLIJ2 clij2;
+    
+    
+    /**
+     * Fail with a RuntimeException or a LinkageError if no OpenCL device is available
+     */
+    public CLIJ2FilterEngine() {
+        clij2 = CLIJ2.getInstance();
+        if (clij2 == null || clij2.getGPUName() == null)
+            throw new IllegalStateException("No OpenCL device found");
+    }
+    
+    
+    @Override
+    public String getName() {
+        return("CLIJ2 (" + clij2.getGPUName() + ")");
+    }
+    
+    
+    /**
+     * Difference of Gaussians with CLIJ2
+     */ 
+    @Override
+    public synchronized ImagePlus DOG(ImagePlus img, double size1, double size2) {
+        ClearCLBuffer imgCL = clij2.push(img);
+        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
+        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
+        ImagePlus imgDOG = clij2.pull(imgCLDOG);
+        StageMetrics.addTransfer(imgCL.getSizeInBytes(), imgCLDOG.getSizeInBytes());
+        clij2.release(imgCL);
+        clij2.release(imgCLDOG);
+        return(imgDOG);
+    }
+
+}
@@ -0,0 +1,199 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Pure Java filters, used when no OpenCL device is available
+ * Results follow CLIJ2 conventions: output has the same bit depth as input,
+ * binary images are 0/1
+ * @author ORION-CIRB
+ */
+public class CPUFilterEngine implements FilterEngine {
+    
+    @Override
+    public String getName() {
+        return("CPU (" + Runtime.getRuntime().availableProcessors() + " threads)");
+    }
+    
+    
+    /**
+     * Difference of Gaussians, computed slice-parallel on float arrays
+     */ 
+    @Override
+    public ImagePlus DOG(ImagePlus img, double size1, double size2) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        float[][] data = getFloatPixels(img);
+        float[][] gauss1 = gaussian3D(data, width, height, size1, size1, size1);
+        float[][] gauss2 = gaussian3D(data, width, height, size2, size2, size2);
+        IntStream.range(0, data.length).parallel().forEach(z -> {
+            for (int i = 0; i < gauss1[z].length; i++)
+                gauss1[z][i] -= gauss2[z][i];
+        });
+        return(createImage(img, gauss1));
+    }
+    
+    
+    /**
+     * Binarize image, voxels >= th set to 1 in an 8-bit image, slices in parallel
+     */
+    public static ImagePlus binarize(ImagePlus img, float th) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        ByteProcessor[] bps = new ByteProcessor[img.getNSlices()];
+        IntStream.range(0, bps.length).parallel().forEach(z -> {
+            ImageProcessor ip = img.getStack().getProcessor(z+1);
+            byte[] bin = new byte[width*height];
+            for (int i = 0; i < bin.length; i++)
+                bin[i] = (byte) ((ip.getf(i) >= th) ? 1 : 0);
+            bps[z] = new ByteProcessor(width, height, bin);
+        });
+        ImageStack stackBin = new ImageStack(width, height);
+        for (ByteProcessor bp: bps)
+            stackBin.addSlice(bp);
+        ImagePlus imgBin = new ImagePlus(img.getTitle(), stackBin);
+        imgBin.setCalibration(img.getCalibration());
+        return(imgBin);
+    }
+    
+    
+    /**
+     * 3D Gaussian blur with separable kernels, sigmas in pixels
+     * Borders are handled by replicating edge pixels
+     */
+    public static float[][] gaussian3D(float[][] data, int width, int height, double sigmaX, double sigmaY, double sigmaZ) {
+        int depth = data.length;
+        float[] kernelX = gaussianKernel(sigmaX);
+        float[] kernelY = gaussianKernel(sigmaY);
+        float[] kernelZ = gaussianKernel(sigmaZ);
+        
+        // XY passes, one slice per task
+        float[][] blurXY = new float[depth][];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] line = new float[Math.max(width, height)];
+            float[] lineOut = new float[line.length];
+            float[] tmp = new float[width * height];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(data[z], y * width, line, 0, width);
+                convolveLine(line, lineOut, width, kernelX);
+                System.arraycopy(lineOut, 0, tmp, y * width, width);
+            }
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++)
+                    line[y] = tmp[x + y * width];
+                convolveLine(line, lineOut, height, kernelY);
+                for (int y = 0; y < height; y++)
+                    tmp[x + y * width] = lineOut[y];
+            }
+            blurXY[z] = tmp;
+        });
+        
+        // Z pass, one row per task
+        float[][] blur = new float[depth][width * height];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            float[] line = new float[depth];
+            float[] lineOut = new float[depth];
+            for (int x = 0; x < width; x++) {
+                int i = x + y * width;
+                for (int z = 0; z < depth; z++)
+                    line[z] = blurXY[z][i];
+                convolveLine(line, lineOut, depth, kernelZ);
+                for (int z = 0; z < depth; z++)
+                    blur[z][i] = lineOut[z];
+            }
+        });
+        return(blur);
+    }
+    
+    
+    /**
+     * Normalized Gaussian kernel of radius ceil(3*sigma)
+     */
+    public static float[] gaussianKernel(double sigma) {
+        if (sigma <= 0)
+            return(new float[]{1});
+        int radius = (int) Math.ceil(3 * sigma);
+        float[] kernel = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) Math.exp(-i * i / (2 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++)
+            kernel[i] /= sum;
+        return(kernel);
+    }
+    
+    
+    /**
+     * Convolve the n first values of line with kernel
+     */
+    private static void convolveLine(float[] line, float[] lineOut, int n, float[] kernel) {
+        int radius = kernel.length / 2;
+        for (int i = 0; i < n; i++) {
+            float sum = 0;
+            for (int k = -radius; k <= radius; k++) {
+                int j = Math.max(0, Math.min(n - 1, i + k));
+                sum += line[j] * kernel[k + radius];
+            }
+            lineOut[i] = sum;
+        }
+    }
+    
+    
+    /**
+     * Copy image pixels into float arrays
+     */
+    public static float[][] getFloatPixels(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        float[][] data = new float[stack.getSize()][];
+        IntStream.range(0, data.length).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z + 1);
+            data[z] = (ip instanceof FloatProcessor) ? ((float[]) ip.getPixels()).clone() : (float[]) ip.convertToFloat().getPixels();
+        });
+        return(data);
+    }
+    
+    
+    /**
+     * Create image with same dimensions, calibration and bit depth as img
+     * Values are saturated to the range of the bit depth, as with CLIJ2 buffers
+     */
+    public static ImagePlus createImage(ImagePlus img, float[][] data) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        ImageProcessor[] ips = new ImageProcessor[data.length];
+        IntStream.range(0, data.length).parallel().forEach(z -> {
+            switch (img.getBitDepth()) {
+                case 8 :
+                    byte[] bytes = new byte[data[z].length];
+                    for (int i = 0; i < bytes.length; i++)
+                        bytes[i] = (byte) Math.max(0, Math.min(255, (int) data[z][i]));
+                    ips[z] = new ByteProcessor(width, height, bytes);
+                    break;
+                case 16 :
+                    short[] shorts = new short[data[z].length];
+                    for (int i = 0; i < shorts.length; i++)
+                        shorts[i] = (short) Math.max(0, Math.min(65535, (int) data[z][i]));
+                    ips[z] = new ShortProcessor(width, height, shorts, null);
+                    break;
+                default :
+                    ips[z] = new FloatProcessor(width, height, data[z]);
+            }
+        });
+        ImageStack stack = new ImageStack(width, height);
+        for (ImageProcessor ip: ips)
+            stack.addSlice(ip);
+        ImagePlus imgOut = new ImagePlus(img.getTitle(), stack);
+        imgOut.setCalibration(img.getCalibration());
+        return(imgOut);
+    }
+}
@@ -0,0 +1,171 @@
+package Vessel_IB4_Tools;
+
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * Anisotropic squared Euclidean distance transform
+ * Separable algorithm of Felzenszwalb and Huttenlocher, one pass per axis
+ * Distances can be kept for a few columns only, such as those of dots voxels, instead of the whole stack
+ * @author ORION-CIRB
+ */
+public class DistanceMap {
+
+    // Distance of voxels with no non-zero voxel in mask
+    public static final float INF = 1e20f;
+
+
+    /**
+     * Squared distance (calibrated units) of each voxel to the nearest non-zero voxel of mask
+     * Voxel sizes are given by pw, ph, pd
+     */
+    public static float[][] squaredEDT(byte[][] mask, int width, int height, double pw, double ph, double pd) {
+        int depth = mask.length;
+        float[][] dist = new float[depth][width*height];
+
+        // X and Y passes, one slice per task
+        IntStream.range(0, depth).parallel().forEach(z -> transform2D(mask[z], dist[z], width, height, pw, ph));
+
+        // Z pass, one row per task
+        IntStream.range(0, height).parallel().forEach(y -> {
+            float[] f = new float[depth];
+            float[] d = new float[depth];
+            int[] v = new int[depth];
+            float[] b = new float[depth+1];
+            for (int x = 0; x < width; x++) {
+                int i = x+y*width;
+                for (int z = 0; z < depth; z++)
+                    f[z] = dist[z][i];
+                transform1D(f, d, v, b, depth, (float) (pd*pd));
+                for (int z = 0; z < depth; z++)
+                    dist[z][i] = d[z];
+            }
+        });
+        return(dist);
+    }
+
+
+    /**
+     * Squared distances (calibrated units) to the nearest voxel painted by mask, at the voxels of columns only
+     * columns are sorted indexes x + y*width, slices of mask are painted one at a time
+     */
+    public static Columns squaredEDT(OverlayWriter.Layer mask, int[] columns, int width, int height, int depth, double pw, double ph, double pd) {
+        float[][] dist = new float[depth][columns.length];
+
+        // X and Y passes on whole slices, one slice per task, only columns are kept
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            byte[] slice = new byte[width*height];
+            float[] plane = new float[width*height];
+            mask.paint(slice, z, width, (byte) 1);
+            transform2D(slice, plane, width, height, pw, ph);
+            for (int c = 0; c < columns.length; c++)
+                dist[z][c] = plane[columns[c]];
+        });
+
+        // Z pass, one block of columns per task
+        int blockSize = 1024;
+        IntStream.range(0, (columns.length + blockSize - 1) / blockSize).parallel().forEach(block -> {
+            float[] f = new float[depth];
+            float[] d = new float[depth];
+            int[] v = new int[depth];
+            float[] b = new float[depth+1];
+            for (int c = block*blockSize; c < Math.min(columns.length, (block+1)*blockSize); c++) {
+                for (int z = 0; z < depth; z++)
+                    f[z] = dist[z][c];
+                transform1D(f, d, v, b, depth, (float) (pd*pd));
+                for (int z = 0; z < depth; z++)
+                    dist[z][c] = d[z];
+            }
+        });
+        return(new Columns(columns, dist));
+    }
+
+
+    /**
+     * Squared distances of the voxels of some columns, in all slices
+     */
+    public static class Columns {
+        // Sorted indexes x + y*width
+        private final int[] columns;
+        // Squared distances, [z][index of column]
+        private final float[][] dist;
+
+        private Columns(int[] columns, float[][] dist) {
+            this.columns = columns;
+            this.dist = dist;
+        }
+
+        /**
+         * Index of column x + y*width, negative if it was not computed
+         */
+        public int indexOf(int column) {
+            return(Arrays.binarySearch(columns, column));
+        }
+
+        public float get(int z, int index) {
+            return(dist[z][index]);
+        }
+    }
+
+
+    /**
+     * 2D squared distance transform of slice mask into dist, X pass then Y pass
+     */
+    private static void transform2D(byte[] mask, float[] dist, int width, int height, double pw, double ph) {
+        float[] f = new float[Math.max(width, height)];
+        float[] d = new float[f.length];
+        int[] v = new int[f.length];
+        float[] b = new float[f.length+1];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                f[x] = (mask[x+y*width] != 0) ? 0 : INF;
+            transform1D(f, d, v, b, width, (float) (pw*pw));
+            System.arraycopy(d, 0, dist, y*width, width);
+        }
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++)
+                f[y] = dist[x+y*width];
+            transform1D(f, d, v, b, height, (float) (ph*ph));
+            for (int y = 0; y < height; y++)
+                dist[x+y*width] = d[y];
+        }
+    }
+
+
+    /**
+     * 1D squared distance transform of sampled function f, w is the squared sample spacing
+     * Lower envelope of parabolas, v holds parabolas locations and b their boundaries
+     */
+    private static void transform1D(float[] f, float[] d, int[] v, float[] b, int n, float w) {
+        int k = -1;
+        for (int q = 0; q < n; q++) {
+            if (f[q] >= INF)
+                continue;
+            float s = -INF;
+            while (k >= 0) {
+                s = ((f[q] + w*q*q) - (f[v[k]] + w*v[k]*v[k])) / (2*w*(q - v[k]));
+                if (s > b[k])
+                    break;
+                k--;
+            }
+            k++;
+            v[k] = q;
+            b[k] = (k == 0) ? -INF : s;
+            b[k+1] = INF;
+        }
+        if (k < 0) {
+            for (int q = 0; q < n; q++)
+                d[q] = INF;
+            return;
+        }
+        int j = 0;
+        for (int q = 0; q < n; q++) {
+            while (b[j+1] < q)
+                j++;
+            float dq = q - v[j];
+            d[q] = w*dq*dq + f[v[j]];
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package Vessel_IB4_Tools;
+
+
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.BitSet;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Population of small objects kept as voxel runs in primitive arrays
+ * Object i has label getLabel(i) and runs runStart[i] to runStart[i+1]-1, a run being {z, y, x0, x1}
+ * Measurements are held in an ObjectsMeasure indexed by label
+ * Classification and drawing work on runs, the mcib3d population is only built when asked
+ * @author ORION-CIRB
+ */
+public class DotStore implements OverlayWriter.Layer {
+
+    private final Calibration cal;
+    private final ObjectsMeasure measure;
+
+    private int nbObjects = 0;
+    private int[] labels = new int[256];
+    private int[] runStart = new int[257];
+    private int nbRuns = 0;
+    private int[] runZ = new int[1024];
+    private int[] runY = new int[1024];
+    private int[] runX0 = new int[1024];
+    private int[] runX1 = new int[1024];
+
+    // Built on demand
+    private Objects3DIntPopulation pop = null;
+    private int[] zOrder = null;
+    private int[] zStart = null;
+
+
+    public DotStore(Calibration cal, ObjectsMeasure measure) {
+        this.cal = cal;
+        this.measure = measure;
+    }
+
+
+    /**
+     * Start object label, next runs are added to it
+     */
+    public void addObject(int label) {
+        if (nbObjects == labels.length) {
+            labels = Arrays.copyOf(labels, 2*nbObjects);
+            runStart = Arrays.copyOf(runStart, 2*nbObjects+1);
+        }
+        labels[nbObjects++] = label;
+        runStart[nbObjects] = nbRuns;
+    }
+
+
+    /**
+     * Add run of voxels (x0..x1, y, z) to last object
+     */
+    public void addRun(int z, int y, int x0, int x1) {
+        if (nbRuns == runZ.length) {
+            int size = 2*nbRuns;
+            runZ = Arrays.copyOf(runZ, size);
+            runY = Arrays.copyOf(runY, size);
+            runX0 = Arrays.copyOf(runX0, size);
+            runX1 = Arrays.copyOf(runX1, size);
+        }
+        runZ[nbRuns] = z;
+        runY[nbRuns] = y;
+        runX0[nbRuns] = x0;
+        runX1[nbRuns] = x1;
+        runStart[nbObjects] = ++nbRuns;
+    }
+
+
+    public int getNbObjects() {
+        return(nbObjects);
+    }
+
+
+    public int getLabel(int i) {
+        return(labels[i]);
+    }
+
+
+    public ObjectsMeasure getMeasure() {
+        return(measure);
+    }
+
+
+    /**
+     * Runs of object i, as {z, y, x0, x1} one after the other
+     */
+    public int[] getRuns(int i) {
+        int[] runs = new int[4*(runStart[i+1] - runStart[i])];
+        for (int r = runStart[i], n = 0; r < runStart[i+1]; r++) {
+            runs[n++] = runZ[r];
+            runs[n++] = runY[r];
+            runs[n++] = runX0[r];
+            runs[n++] = runX1[r];
+        }
+        return(runs);
+    }
+
+
+    /**
+     * Set in columns the indexes x + y*width of the voxels of all objects
+     */
+    public void markColumns(BitSet columns, int width) {
+        for (int r = 0; r < nbRuns; r++)
+            columns.set(runX0[r] + runY[r]*width, runX1[r] + runY[r]*width + 1);
+    }
+
+
+    /**
+     * Split objects voxels between dots with a squared distance of dist <= maxDist2 (in) and dots further (out)
+     * dist must hold the columns of all objects voxels, see markColumns
+     * Parts keep the label of their object and are measured with intensities of ips and squared distances of dist
+     * Return {in, out}
+     */
+    public DotStore[] classify(DistanceMap.Columns dist, float maxDist2, ImageProcessor[] ips, int width) {
+        DotStore in = new DotStore(cal, new ObjectsMeasure(true));
+        DotStore out = new DotStore(cal, new ObjectsMeasure(true));
+        for (int i = 0; i < nbObjects; i++) {
+            int label = labels[i];
+            boolean hasIn = false, hasOut = false;
+            for (int r = runStart[i]; r < runStart[i+1]; r++) {
+                int z = runZ[r], y = runY[r];
+                // Columns of a run are consecutive
+                int c = dist.indexOf(runX0[r] + y*width) - runX0[r];
+                int x = runX0[r];
+                while (x <= runX1[r]) {
+                    // Segment of the run on one side of the dilated vessels border
+                    boolean inside = dist.get(z, c + x) <= maxDist2;
+                    DotStore part = inside ? in : out;
+                    if (inside && !hasIn) {
+                        in.addObject(label);
+                        hasIn = true;
+                    } else if (!inside && !hasOut) {
+                        out.addObject(label);
+                        hasOut = true;
+                    }
+                    int x0 = x;
+                    float d;
+                    while (x <= runX1[r] && ((d = dist.get(z, c + x)) <= maxDist2) == inside) {
+                        part.measure.add(label, x, y, z, ips[z].getf(x, y));
+                        part.measure.addDistance(label, d);
+                        x++;
+                    }
+                    part.addRun(z, y, x0, x-1);
+                }
+            }
+        }
+        return(new DotStore[]{in, out});
+    }
+
+
+    /**
+     * mcib3d population of objects, built once
+     */
+    public Objects3DIntPopulation toPopulation() {
+        if (pop != null)
+            return(pop);
+        pop = new Objects3DIntPopulation();
+        for (int i = 0; i < nbObjects; i++) {
+            Object3DInt obj = new Object3DInt();
+            for (int r = runStart[i]; r < runStart[i+1]; r++)
+                for (int x = runX0[r]; x <= runX1[r]; x++)
+                    obj.addVoxel(new VoxelInt(x, runY[r], runZ[r], labels[i]));
+            obj.setLabel(labels[i]);
+            obj.setVoxelSizeXY(cal.pixelWidth);
+            obj.setVoxelSizeZ(cal.pixelDepth);
+            pop.addObject(obj);
+        }
+        return(pop);
+    }
+
+
+    /**
+     * Set voxels of slice z to value, runs are sorted by slice the first time
+     */
+    @Override
+    public void paint(byte[] slice, int z, int width, byte value) {
+        if (zOrder == null) {
+            int depth = 0;
+            for (int r = 0; r < nbRuns; r++)
+                depth = Math.max(depth, runZ[r]+1);
+            int[] start = new int[depth+1];
+            for (int r = 0; r < nbRuns; r++)
+                start[runZ[r]+1]++;
+            for (int s = 1; s <= depth; s++)
+                start[s] += start[s-1];
+            int[] order = new int[nbRuns];
+            int[] next = Arrays.copyOf(start, depth);
+            for (int r = 0; r < nbRuns; r++)
+                order[next[runZ[r]]++] = r;
+            zStart = start;
+            zOrder = order;
+        }
+        if (z >= zStart.length-1)
+            return;
+        for (int i = zStart[z]; i < zStart[z+1]; i++) {
+            int r = zOrder[i];
+            Arrays.fill(slice, runX0[r] + runY[r]*width, runX1[r] + runY[r]*width + 1, value);
+        }
+    }
+}
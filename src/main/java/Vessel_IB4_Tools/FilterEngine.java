@@ -0,0 +1,23 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+
+
+/**
+ * 3D filters used for vessels and geneX dots detection
+ * @author ORION-CIRB
+ */
+public interface FilterEngine {
+    
+    /**
+     * Difference of Gaussians, sizes in pixels
+     */
+    public ImagePlus DOG(ImagePlus img, double size1, double size2);
+    
+    
+    /**
+     * Engine name displayed in log
+     */
+    public String getName();
+}
@@ -0,0 +1,241 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Scale normalised, negated Laplacian of Gaussian for large sigmas
+ * Gaussian is computed with the fourth order recursive filter of Deriche,
+ * so cost per voxel does not depend on sigma
+ * Laplacian is taken as second differences of the smoothed image, padded by one replicated edge pixel
+ * so that boundaries replicate edge pixels up to the border pixels
+ * @author ORION-CIRB
+ */
+public class LaplacianOfGaussian {
+
+    /**
+     * LoG of img, sigmas in pixels, sigmaZ = 0 filters slice by slice
+     * Z second derivative is weighted by (pixelWidth/pixelDepth)^2 so that the Laplacian is isotropic in calibrated units
+     * Result is a 32-bit image
+     */
+    public static ImagePlus filter(ImagePlus img, double sigmaXY, double sigmaZ) {
+        return(filter(img, sigmaXY, sigmaZ, null));
+    }
+    
+    
+    /**
+     * LoG of img written plane by plane into 32-bit stack out, such as a ScratchStack
+     * A new stack is created if out is null
+     * With sigmaZ = 0, slices are read, smoothed and written one at a time, so only one smoothed
+     * slice per worker is on the heap; with sigmaZ > 0, the whole smoothed stack is kept as floats
+     */
+    public static ImagePlus filter(ImagePlus img, double sigmaXY, double sigmaZ, ImageStack out) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int depth = img.getNSlices();
+        double ratio = img.getCalibration().pixelWidth / img.getCalibration().pixelDepth;
+        float wZ = (sigmaZ > 0) ? (float) (ratio*ratio) : 0;
+        float norm = (float) -(sigmaXY*sigmaXY);
+
+        float[][] lap = new float[depth][];
+        if (sigmaZ > 0) {
+            // Slices padded in XY, and along Z by a copy of the first and last slices
+            float[][] smooth = new float[depth+2][];
+            IntStream.range(0, depth).parallel().forEach(z -> smooth[z+1] = padded(img.getStack().getProcessor(z+1), width, height));
+            smooth[0] = smooth[1].clone();
+            smooth[depth+1] = smooth[depth].clone();
+            gaussian3D(smooth, width+2, height+2, sigmaXY, sigmaXY, sigmaZ);
+            IntStream.range(0, depth).parallel().forEach(z -> {
+                float[] l = laplacian(smooth[z], smooth[z+1], smooth[z+2], width, height, norm, wZ);
+                if (out == null)
+                    lap[z] = l;
+                else
+                    out.setPixels(l, z+1);
+            });
+        } else {
+            ImageStack stack = img.getStack();
+            IntStream.range(0, depth).parallel().forEach(z -> {
+                float[] s = padded(stack.getProcessor(z+1), width, height);
+                gaussian3D(new float[][]{s}, width+2, height+2, sigmaXY, sigmaXY, 0);
+                float[] l = laplacian(s, s, s, width, height, norm, 0);
+                if (out == null)
+                    lap[z] = l;
+                else
+                    out.setPixels(l, z+1);
+            });
+        }
+
+        ImageStack stack = out;
+        if (stack == null) {
+            stack = new ImageStack(width, height);
+            for (int z = 0; z < depth; z++)
+                stack.addSlice(new FloatProcessor(width, height, lap[z]));
+        }
+        ImagePlus imgLOG = new ImagePlus(img.getTitle(), stack);
+        imgLOG.setCalibration(img.getCalibration());
+        return(imgLOG);
+    }
+    
+    
+    /**
+     * Pixels of ip as floats, padded by one replicated edge pixel on each side
+     * Smoothing the padded slice gives the smoothed values just outside the image, so that border pixels
+     * have true second differences
+     */
+    private static float[] padded(ImageProcessor ip, int width, int height) {
+        int pw = width + 2;
+        float[] s = new float[pw*(height+2)];
+        for (int y = 0; y < height+2; y++) {
+            int yi = Math.max(0, Math.min(height-1, y-1));
+            for (int x = 0; x < pw; x++)
+                s[y*pw + x] = ip.getf(Math.max(0, Math.min(width-1, x-1)), yi);
+        }
+        return(s);
+    }
+    
+    
+    /**
+     * Normalised Laplacian of smoothed padded slice zMid, second differences along Z with zPrev and zNext weighted by wZ
+     */
+    private static float[] laplacian(float[] zPrev, float[] zMid, float[] zNext, int width, int height, float norm, float wZ) {
+        int pw = width + 2;
+        float[] l = new float[width*height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                int p = (y+1)*pw + x+1;
+                float dxx = zMid[p-1] + zMid[p+1] - 2*zMid[p];
+                float dyy = zMid[p-pw] + zMid[p+pw] - 2*zMid[p];
+                float dzz = zPrev[p] + zNext[p] - 2*zMid[p];
+                l[y*width + x] = norm * (dxx + dyy + wZ*dzz);
+            }
+        return(l);
+    }
+
+
+    /**
+     * Recursive 3D Gaussian blur, sigmas in pixels, a sigma < 0.5 leaves that axis unfiltered
+     * XY passes run one slice per task, Z pass one row per task
+     */
+    public static float[][] gaussian3D(float[][] data, int width, int height, double sigmaX, double sigmaY, double sigmaZ) {
+        int depth = data.length;
+        RecursiveFilter filterX = RecursiveFilter.create(sigmaX);
+        RecursiveFilter filterY = RecursiveFilter.create(sigmaY);
+        RecursiveFilter filterZ = RecursiveFilter.create(sigmaZ);
+
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            double[] line = new double[Math.max(width, height)];
+            if (filterX != null)
+                for (int y = 0; y < height; y++)
+                    filterX.apply(data[z], y*width, 1, width, line);
+            if (filterY != null)
+                for (int x = 0; x < width; x++)
+                    filterY.apply(data[z], x, width, height, line);
+        });
+        if (filterZ != null && depth > 1) {
+            IntStream.range(0, height).parallel().forEach(y -> {
+                double[] line = new double[depth];
+                float[] column = new float[depth];
+                for (int x = 0; x < width; x++) {
+                    int i = x + y*width;
+                    for (int z = 0; z < depth; z++)
+                        column[z] = data[z][i];
+                    filterZ.apply(column, 0, 1, depth, line);
+                    for (int z = 0; z < depth; z++)
+                        data[z][i] = column[z];
+                }
+            });
+        }
+        return(data);
+    }
+
+
+    /**
+     * Fourth order causal + anticausal recursive Gaussian of Deriche, in parallel form
+     * Coefficients are those fitted with a zero slope at the origin (also used by ITK), the smoothed image
+     * keeps smooth second differences: these differ from the sampled Gaussian second derivative by about
+     * 1% of its peak for sigma >= 5 (fitted kernel has a standard deviation of 0.97 sigma, a sigma scaled
+     * to correct it would fit the kernel shape worse)
+     */
+    private static class RecursiveFilter {
+
+        // Kernel (A0 cos(W0 x) + B0 sin(W0 x)) exp(-L0 x) + (A1 cos(W1 x) + B1 sin(W1 x)) exp(-L1 x), x in sigma units
+        private static final double A0 = 1.3530, B0 = 1.8151, L0 = 1.3932, W0 = 0.6681;
+        private static final double A1 = -0.3531, B1 = 0.0902, L1 = 1.3732, W1 = 2.0787;
+
+        // Causal numerator n, anticausal numerator m, common denominator d
+        private final double n0, n1, n2, n3, m1, m2, m3, m4, d1, d2, d3, d4;
+        // Steady state gains of the causal and anticausal passes for a constant line
+        private final double gainN, gainM;
+
+
+        private RecursiveFilter(double sigma) {
+            double e0 = Math.exp(-L0/sigma), e1 = Math.exp(-L1/sigma);
+            double c0 = Math.cos(W0/sigma), s0 = Math.sin(W0/sigma), c1 = Math.cos(W1/sigma), s1 = Math.sin(W1/sigma);
+            double[] n = {
+                A0 + A1,
+                e1*(B1*s1 - (A1 + 2*A0)*c1) + e0*(B0*s0 - (2*A1 + A0)*c0),
+                2*e0*e1*((A0 + A1)*c1*c0 - B0*c1*s0 - B1*c0*s1) + A1*e0*e0 + A0*e1*e1,
+                e1*e0*e0*(B1*s1 - A1*c1) + e0*e1*e1*(B0*s0 - A0*c0)
+            };
+            d1 = -2*e1*c1 - 2*e0*c0;
+            d2 = 4*c1*c0*e0*e1 + e1*e1 + e0*e0;
+            d3 = -2*c0*e0*e1*e1 - 2*c1*e1*e0*e0;
+            d4 = e0*e0*e1*e1;
+            // Symmetric kernel: anticausal numerator from the causal one, the origin counted once
+            double[] m = {0, n[1] - d1*n[0], n[2] - d2*n[0], n[3] - d3*n[0], -d4*n[0]};
+            double sumD = 1 + d1 + d2 + d3 + d4;
+            double sumN = n[0] + n[1] + n[2] + n[3], sumM = m[1] + m[2] + m[3] + m[4];
+            // Unit gain
+            double norm = sumD / (sumN + sumM);
+            n0 = n[0]*norm; n1 = n[1]*norm; n2 = n[2]*norm; n3 = n[3]*norm;
+            m1 = m[1]*norm; m2 = m[2]*norm; m3 = m[3]*norm; m4 = m[4]*norm;
+            gainN = sumN*norm / sumD;
+            gainM = sumM*norm / sumD;
+        }
+
+
+        /**
+         * Filter for sigma, null if sigma is too small to be filtered
+         */
+        static RecursiveFilter create(double sigma) {
+            return((sigma < 0.5) ? null : new RecursiveFilter(sigma));
+        }
+
+
+        /**
+         * Filter in place n values of data starting at offset, spaced by stride
+         * Passes start from the steady state of the edge values, replicated beyond the line
+         * line is a work buffer of at least n values
+         */
+        void apply(float[] data, int offset, int stride, int n, double[] line) {
+            // Causal pass
+            double x1 = data[offset], x2 = x1, x3 = x1;
+            double y1 = x1*gainN, y2 = y1, y3 = y1, y4 = y1;
+            for (int k = 0, i = offset; k < n; k++, i += stride) {
+                double x = data[i];
+                double y = n0*x + n1*x1 + n2*x2 + n3*x3 - d1*y1 - d2*y2 - d3*y3 - d4*y4;
+                line[k] = y;
+                x3 = x2; x2 = x1; x1 = x;
+                y4 = y3; y3 = y2; y2 = y1; y1 = y;
+            }
+
+            // Anticausal pass, added to the causal one
+            x1 = data[offset + (n-1)*stride];
+            x2 = x1; x3 = x1;
+            double x4 = x1;
+            y1 = x1*gainM; y2 = y1; y3 = y1; y4 = y1;
+            for (int k = n-1, i = offset + k*stride; k >= 0; k--, i -= stride) {
+                double x = data[i];
+                double y = m1*x1 + m2*x2 + m3*x3 + m4*x4 - d1*y1 - d2*y2 - d3*y3 - d4*y4;
+                data[i] = (float) (line[k] + y);
+                x4 = x3; x3 = x2; x2 = x1; x1 = x;
+                y4 = y3; y3 = y2; y2 = y1; y1 = y;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package Vessel_IB4_Tools;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * JMX bean Vessel_IB4:type=Metrics gathering stage metrics of all analyzed images
+ * @author ORION-CIRB
+ */
+public class Metrics implements MetricsMXBean {
+    
+    private static Metrics instance = null;
+    
+    private int imagesAnalyzed = 0;
+    private String lastImage = "";
+    private final Map<String, double[]> totals = new LinkedHashMap<>();
+    
+    
+    /**
+     * Return the registered bean, registering it on first call
+     */
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("Vessel_IB4:type=Metrics");
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+                server.registerMBean(instance, name);
+            } catch (JMException ex) {
+                System.out.println("Metrics not published over JMX: " + ex.getMessage());
+            }
+        }
+        return(instance);
+    }
+    
+    
+    /**
+     * Add metrics of an analyzed image
+     */
+    public synchronized void add(String imageName, StageMetrics metrics) {
+        imagesAnalyzed++;
+        lastImage = imageName;
+        for (Map.Entry<String, double[]> stage: metrics.getStages().entrySet()) {
+            double[] values = totals.computeIfAbsent(stage.getKey(), k -> new double[StageMetrics.COLUMNS.length]);
+            for (int i = 0; i < values.length; i++)
+                values[i] = (i == 3) ? Math.max(values[i], stage.getValue()[i]) : values[i] + stage.getValue()[i];
+        }
+    }
+    
+    
+    private synchronized Map<String, Double> column(int... cols) {
+        Map<String, Double> map = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> stage: totals.entrySet()) {
+            double v = 0;
+            for (int c: cols)
+                v += stage.getValue()[c];
+            map.put(stage.getKey(), v);
+        }
+        return(map);
+    }
+    
+    
+    @Override
+    public synchronized int getImagesAnalyzed() {
+        return(imagesAnalyzed);
+    }
+    
+    @Override
+    public synchronized String getLastImage() {
+        return(lastImage);
+    }
+    
+    @Override
+    public Map<String, Double> getWallTimeMs() {
+        return(column(0));
+    }
+    
+    @Override
+    public Map<String, Double> getCpuTimeMs() {
+        return(column(1));
+    }
+    
+    @Override
+    public Map<String, Double> getAllocatedMB() {
+        return(column(2));
+    }
+    
+    @Override
+    public Map<String, Double> getPeakHeapMB() {
+        return(column(3));
+    }
+    
+    @Override
+    public Map<String, Double> getGpuTransferMB() {
+        return(column(4, 5));
+    }
+}
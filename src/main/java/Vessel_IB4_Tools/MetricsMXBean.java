@@ -0,0 +1,26 @@
+package Vessel_IB4_Tools;
+
+
+import java.util.Map;
+
+
+/**
+ * Stage metrics published over JMX, summed over analyzed images
+ * @author ORION-CIRB
+ */
+public interface MetricsMXBean {
+    
+    public int getImagesAnalyzed();
+    
+    public String getLastImage();
+    
+    public Map<String, Double> getWallTimeMs();
+    
+    public Map<String, Double> getCpuTimeMs();
+    
+    public Map<String, Double> getAllocatedMB();
+    
+    public Map<String, Double> getPeakHeapMB();
+    
+    public Map<String, Double> getGpuTransferMB();
+}
@@ -0,0 +1,251 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.List;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Voxel count, intensity, centroid and distance to vessels of every object of a population, indexed by label
+ * Collected in a single pass over voxels and reused by filtering, classification and results
+ * @author ORION-CIRB
+ */
+public class ObjectsMeasure {
+
+    private final boolean withIntensity;
+    private int maxLabel = 0;
+    private long[] count = new long[0];
+    private double[] sumInt = new double[0];
+    private float[] minInt = new float[0];
+    private float[] maxInt = new float[0];
+    private double[] sumX = new double[0];
+    private double[] sumY = new double[0];
+    private double[] sumZ = new double[0];
+    // Smallest squared distance of objects voxels to vessels, if measured
+    private float[] minDist2 = new float[0];
+
+
+    public ObjectsMeasure(boolean withIntensity) {
+        this.withIntensity = withIntensity;
+    }
+
+
+    /**
+     * Measure objects of a labels image in one raster scan
+     * img gives voxels intensity, can be null
+     */
+    public static ObjectsMeasure fromLabels(ImagePlus imgLabels, ImagePlus img) {
+        ObjectsMeasure measure = new ObjectsMeasure(img != null);
+        int width = imgLabels.getWidth();
+        for (int z = 0; z < imgLabels.getNSlices(); z++) {
+            ImageProcessor ipLabels = imgLabels.getStack().getProcessor(z+1);
+            ImageProcessor ip = (img == null) ? null : img.getStack().getProcessor(z+1);
+            for (int i = 0; i < width*imgLabels.getHeight(); i++) {
+                int label = (int) ipLabels.getf(i);
+                if (label != 0)
+                    measure.add(label, i%width, i/width, z, (ip == null) ? 0 : ip.getf(i));
+            }
+        }
+        return(measure);
+    }
+
+
+    /**
+     * Measure objects of a population, visiting their voxels once
+     * img gives voxels intensity, can be null
+     * Objects are measured in parallel when their labels are distinct: arrays are sized first
+     * and each label is then written by a single thread, in the same voxel order as sequentially,
+     * so that measurements and totals are identical to a sequential pass
+     */
+    public static ObjectsMeasure fromPopulation(Objects3DIntPopulation pop, ImagePlus img) {
+        ObjectsMeasure measure = new ObjectsMeasure(img != null);
+        ImageProcessor[] ips = getProcessors(img);
+        List<Object3DInt> objects = pop.getObjects3DInt();
+        int maxLabel = 0;
+        for (Object3DInt obj: objects)
+            maxLabel = Math.max(maxLabel, (int) obj.getLabel());
+        boolean[] seen = new boolean[maxLabel+1];
+        boolean distinct = true;
+        for (Object3DInt obj: objects) {
+            int label = (int) obj.getLabel();
+            if (label < 0 || seen[label]) {
+                distinct = false;
+                break;
+            }
+            seen[label] = true;
+        }
+        
+        if (distinct) {
+            measure.grow(maxLabel);
+            measure.maxLabel = maxLabel;
+            objects.parallelStream().forEach(obj -> measure.addObject(obj, ips));
+        } else {
+            for (Object3DInt obj: objects)
+                measure.addObject(obj, ips);
+        }
+        return(measure);
+    }
+    
+    
+    private void addObject(Object3DInt obj, ImageProcessor[] ips) {
+        int label = (int) obj.getLabel();
+        for (Object3DPlane p: obj.getObject3DPlanes())
+            for (VoxelInt v: p.getVoxels())
+                add(label, v.getX(), v.getY(), v.getZ(), (ips == null) ? 0 : ips[v.getZ()].getf(v.getX(), v.getY()));
+    }
+
+
+    /**
+     * Processors of image slices, fetched once, null if img is null
+     */
+    public static ImageProcessor[] getProcessors(ImagePlus img) {
+        if (img == null)
+            return(null);
+        ImageProcessor[] ips = new ImageProcessor[img.getNSlices()];
+        for (int z = 0; z < ips.length; z++)
+            ips[z] = img.getStack().getProcessor(z+1);
+        return(ips);
+    }
+
+
+    /**
+     * Add a voxel to object label
+     */
+    public void add(int label, int x, int y, int z, float intensity) {
+        if (label >= count.length)
+            grow(label);
+        if (label > maxLabel)
+            maxLabel = label;
+        if (count[label] == 0 || intensity < minInt[label])
+            minInt[label] = intensity;
+        if (count[label] == 0 || intensity > maxInt[label])
+            maxInt[label] = intensity;
+        count[label]++;
+        sumInt[label] += intensity;
+        sumX[label] += x;
+        sumY[label] += y;
+        sumZ[label] += z;
+    }
+
+
+    /**
+     * Add squared distance to vessels of a voxel of object label
+     */
+    public void addDistance(int label, float dist2) {
+        if (label >= count.length)
+            grow(label);
+        if (dist2 < minDist2[label])
+            minDist2[label] = dist2;
+    }
+
+
+    private void grow(int label) {
+        int size = Math.max(label+1, 2*count.length);
+        count = Arrays.copyOf(count, size);
+        sumInt = Arrays.copyOf(sumInt, size);
+        minInt = Arrays.copyOf(minInt, size);
+        maxInt = Arrays.copyOf(maxInt, size);
+        sumX = Arrays.copyOf(sumX, size);
+        sumY = Arrays.copyOf(sumY, size);
+        sumZ = Arrays.copyOf(sumZ, size);
+        int old = minDist2.length;
+        minDist2 = Arrays.copyOf(minDist2, size);
+        Arrays.fill(minDist2, old, size, Float.POSITIVE_INFINITY);
+    }
+
+
+    /**
+     * Highest label of measured objects
+     */
+    public int getMaxLabel() {
+        return(maxLabel);
+    }
+    
+    
+    /**
+     * Return true if voxels intensity was measured
+     */
+    public boolean hasIntensity() {
+        return(withIntensity);
+    }
+    
+    
+    public long getCount(int label) {
+        return((label <= maxLabel) ? count[label] : 0);
+    }
+
+
+    public double getVolume(int label, double pixVol) {
+        return(getCount(label) * pixVol);
+    }
+
+
+    public double getSumIntensity(int label) {
+        return((label <= maxLabel) ? sumInt[label] : 0);
+    }
+
+
+    public double getMeanIntensity(int label) {
+        return((getCount(label) > 0) ? sumInt[label] / count[label] : Double.NaN);
+    }
+
+
+    public float getMinIntensity(int label) {
+        return((getCount(label) > 0) ? minInt[label] : Float.NaN);
+    }
+
+
+    public float getMaxIntensity(int label) {
+        return((getCount(label) > 0) ? maxInt[label] : Float.NaN);
+    }
+
+
+    /**
+     * Centroid in pixels {x, y, z}
+     */
+    public double[] getCentroid(int label) {
+        long n = getCount(label);
+        if (n == 0)
+            return(new double[]{Double.NaN, Double.NaN, Double.NaN});
+        return(new double[]{sumX[label]/n, sumY[label]/n, sumZ[label]/n});
+    }
+
+
+    /**
+     * Distance (calibrated units) of the closest voxel of object label to vessels
+     * NaN if distances were not measured or there is no vessel
+     */
+    public double getNearestDistance(int label) {
+        if (getCount(label) == 0 || minDist2[label] >= DistanceMap.INF)
+            return(Double.NaN);
+        return(Math.sqrt(minDist2[label]));
+    }
+
+
+    /**
+     * Total voxel count of objects, summed in labels order
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            total += count[l];
+        return(total);
+    }
+
+
+    /**
+     * Total intensity of objects, summed in labels order
+     */
+    public double getTotalIntensity() {
+        double total = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            total += sumInt[l];
+        return(total);
+    }
+}
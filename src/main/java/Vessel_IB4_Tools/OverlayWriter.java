@@ -0,0 +1,193 @@
+package Vessel_IB4_Tools;
+
+
+import ij.measure.Calibration;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Write detected objects as a single 8-bit class image, one value per layer of objects
+ * Slices are painted one at a time and streamed to a zlib compressed TIFF,
+ * with a color table and ImageJ calibration so that it opens in colors in Fiji
+ * @author ORION-CIRB
+ */
+public class OverlayWriter {
+
+    private static final short TAG_NEW_SUBFILE_TYPE = 254, TAG_WIDTH = 256, TAG_HEIGHT = 257, TAG_BITS_PER_SAMPLE = 258,
+            TAG_COMPRESSION = 259, TAG_PHOTOMETRIC = 262, TAG_DESCRIPTION = 270, TAG_STRIP_OFFSETS = 273, TAG_SAMPLES_PER_PIXEL = 277,
+            TAG_ROWS_PER_STRIP = 278, TAG_STRIP_BYTE_COUNTS = 279, TAG_X_RESOLUTION = 282, TAG_Y_RESOLUTION = 283,
+            TAG_RESOLUTION_UNIT = 296, TAG_COLOR_MAP = 320;
+    private static final short SHORT = 3, LONG = 4, RATIONAL = 5, ASCII = 2;
+    // Adobe deflate
+    private static final int COMPRESSION_ZIP = 8;
+    private static final int PHOTOMETRIC_PALETTE = 3;
+    private static final int NB_ENTRIES = 15;
+
+
+    /**
+     * Objects painted slice by slice
+     */
+    public interface Layer {
+        /**
+         * Set voxels of slice z (width pixels per row) to value
+         */
+        public void paint(byte[] slice, int z, int width, byte value);
+    }
+
+
+    /**
+     * Layer of a population, its objects planes sorted by slice
+     */
+    public static Layer layer(Objects3DIntPopulation pop, int depth) {
+        List<List<Object3DPlane>> planes = new ArrayList<>();
+        for (int z = 0; z < depth; z++)
+            planes.add(new ArrayList<>());
+        for (Object3DInt obj: pop.getObjects3DInt())
+            for (Object3DPlane p: obj.getObject3DPlanes())
+                if (p.getZ() >= 0 && p.getZ() < depth)
+                    planes.get(p.getZ()).add(p);
+        return((slice, z, width, value) -> {
+            for (Object3DPlane p: planes.get(z))
+                for (VoxelInt v: p.getVoxels())
+                    slice[v.getX() + v.getY()*width] = value;
+        });
+    }
+
+
+    /**
+     * Write layers[i] objects with value i+1 in a width x height x depth image
+     * Later layers are painted over earlier ones, colors[i] gives layers[i] RGB color
+     */
+    public static void write(String file, int width, int height, int depth, Calibration cal, List<Layer> layers, int[] colors) throws IOException {
+        byte[] colorMap = colorMap(colors);
+        byte[] description = ("ImageJ=1.53t\nimages=" + depth + "\nslices=" + depth + "\nunit=" + cal.getUnit() + "\nspacing=" + cal.pixelDepth
+                + "\nloop=false\nmin=0.0\nmax=255.0\n\0").getBytes(StandardCharsets.US_ASCII);
+        byte[] slice = new byte[width*height];
+        byte[] compressed = new byte[slice.length + slice.length/100 + 64];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+            out.write(header.array());
+            long nextIFDPointer = 4;
+
+            for (int z = 0; z < depth; z++) {
+                Arrays.fill(slice, (byte) 0);
+                for (int i = 0; i < layers.size(); i++)
+                    layers.get(i).paint(slice, z, width, (byte) (i+1));
+                deflater.reset();
+                deflater.setInput(slice);
+                deflater.finish();
+                int size = 0;
+                while (!deflater.finished()) {
+                    if (size == compressed.length)
+                        compressed = Arrays.copyOf(compressed, 2*compressed.length);
+                    size += deflater.deflate(compressed, size, compressed.length - size);
+                }
+
+                // Page: strip, then IFD and its values, linked from previous IFD
+                long stripOffset = out.length();
+                out.seek(stripOffset);
+                out.write(compressed, 0, size);
+                long ifdOffset = out.length() + (out.length() % 2);
+                byte[] ifd = ifd(ifdOffset, width, height, stripOffset, size, cal, (z == 0) ? description : null, colorMap);
+                out.seek(ifdOffset);
+                out.write(ifd);
+                out.seek(nextIFDPointer);
+                out.write(intBytes((int) ifdOffset));
+                nextIFDPointer = ifdOffset + 2 + 12*entries(z == 0);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    private static int entries(boolean withDescription) {
+        return(withDescription ? NB_ENTRIES : NB_ENTRIES - 1);
+    }
+
+
+    /**
+     * IFD of a page at offset, followed by the values that do not fit in its entries
+     */
+    private static byte[] ifd(long offset, int width, int height, long stripOffset, int stripSize, Calibration cal, byte[] description, byte[] colorMap) {
+        int nbEntries = entries(description != null);
+        int ifdSize = 2 + 12*nbEntries + 4;
+        int valuesSize = 16 + colorMap.length + ((description == null) ? 0 : description.length);
+        ByteBuffer b = ByteBuffer.allocate(ifdSize + valuesSize).order(ByteOrder.LITTLE_ENDIAN);
+        long values = offset + ifdSize;
+        long xResOffset = values, yResOffset = values + 8, colorMapOffset = values + 16, descriptionOffset = colorMapOffset + colorMap.length;
+
+        b.putShort((short) nbEntries);
+        entry(b, TAG_NEW_SUBFILE_TYPE, LONG, 1, 0);
+        entry(b, TAG_WIDTH, LONG, 1, width);
+        entry(b, TAG_HEIGHT, LONG, 1, height);
+        entry(b, TAG_BITS_PER_SAMPLE, SHORT, 1, 8);
+        entry(b, TAG_COMPRESSION, SHORT, 1, COMPRESSION_ZIP);
+        entry(b, TAG_PHOTOMETRIC, SHORT, 1, PHOTOMETRIC_PALETTE);
+        if (description != null)
+            entry(b, TAG_DESCRIPTION, ASCII, description.length, descriptionOffset);
+        entry(b, TAG_STRIP_OFFSETS, LONG, 1, stripOffset);
+        entry(b, TAG_SAMPLES_PER_PIXEL, SHORT, 1, 1);
+        entry(b, TAG_ROWS_PER_STRIP, LONG, 1, height);
+        entry(b, TAG_STRIP_BYTE_COUNTS, LONG, 1, stripSize);
+        entry(b, TAG_X_RESOLUTION, RATIONAL, 1, xResOffset);
+        entry(b, TAG_Y_RESOLUTION, RATIONAL, 1, yResOffset);
+        entry(b, TAG_RESOLUTION_UNIT, SHORT, 1, 1);
+        entry(b, TAG_COLOR_MAP, SHORT, colorMap.length/2, colorMapOffset);
+        b.putInt(0);
+
+        // Pixels per unit as rational numbers
+        int scale = 1000000;
+        b.putInt((int) Math.round(scale / cal.pixelWidth)).putInt(scale);
+        b.putInt((int) Math.round(scale / cal.pixelHeight)).putInt(scale);
+        b.put(colorMap);
+        if (description != null)
+            b.put(description);
+        return(b.array());
+    }
+
+
+    private static void entry(ByteBuffer b, short tag, short type, int count, long value) {
+        b.putShort(tag).putShort(type).putInt(count);
+        if (type == SHORT && count == 1)
+            b.putShort((short) value).putShort((short) 0);
+        else
+            b.putInt((int) value);
+    }
+
+
+    /**
+     * TIFF color map: 256 red, then green, then blue 16-bit values
+     * Value 0 is black, value i+1 has colors[i]
+     */
+    private static byte[] colorMap(int[] colors) {
+        ByteBuffer b = ByteBuffer.allocate(3*256*2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            for (int i = 0; i < 256; i++) {
+                int c = (i > 0 && i <= colors.length) ? (colors[i-1] >> shift) & 0xff : 0;
+                b.putShort((short) (c * 257));
+            }
+        }
+        return(b.array());
+    }
+
+
+    private static byte[] intBytes(int v) {
+        return(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(v).array());
+    }
+}
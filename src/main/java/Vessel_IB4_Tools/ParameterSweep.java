@@ -0,0 +1,167 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import mcib3d.geom2.Objects3DIntPopulation;
+
+
+/**
+ * Analyze an image with every combination of several threshold, volume and dilation settings
+ * LoG and DoG filtered stacks and their histograms are computed once per image,
+ * each threshold method is labelled once and filtered with every volume range,
+ * each dilation mask is computed once and used for every geneX population
+ * @author ORION-CIRB
+ */
+public class ParameterSweep {
+
+    public static final String PARAMS_HEADER = "Foci th method\tMin foci vol (µm3)\tMax foci vol (µm3)\tVessel th method\tMin vessel vol (µm3)\tVessel dilation (µm)\t";
+
+    private final String[] fociThMethods;
+    private final double[] minFociVols;
+    private final double[] maxFociVols;
+    private final String[] vesselThMethods;
+    private final double[] minVesselVols;
+    private final double[] dilVessels;
+    private final double maxVesselVol;
+
+
+    /**
+     * Settings are given as comma separated lists
+     */
+    public ParameterSweep(String fociThMethods, String minFociVols, String maxFociVols, String vesselThMethods,
+            String minVesselVols, String dilVessels, double maxVesselVol) {
+        this.fociThMethods = splitValues(fociThMethods);
+        this.minFociVols = parseValues(minFociVols);
+        this.maxFociVols = parseValues(maxFociVols);
+        this.vesselThMethods = splitValues(vesselThMethods);
+        this.minVesselVols = parseValues(minVesselVols);
+        this.dilVessels = parseValues(dilVessels);
+        this.maxVesselVol = maxVesselVol;
+    }
+
+
+    private static String[] splitValues(String values) {
+        String[] split = values.split(",");
+        for (int i = 0; i < split.length; i++)
+            split[i] = split[i].trim();
+        return(split);
+    }
+
+
+    private static double[] parseValues(String values) {
+        String[] split = splitValues(values);
+        double[] parsed = new double[split.length];
+        for (int i = 0; i < split.length; i++)
+            parsed[i] = Double.parseDouble(split[i]);
+        return(parsed);
+    }
+
+
+    /**
+     * Number of settings combinations
+     */
+    public int getNbCombinations() {
+        return(fociThMethods.length * minFociVols.length * maxFociVols.length * vesselThMethods.length * minVesselVols.length * dilVessels.length);
+    }
+
+
+    /**
+     * Swept settings, as a single line
+     */
+    public String getParams() {
+        return(String.join(",", fociThMethods) + "\t" + Arrays.toString(minFociVols) + "\t" + Arrays.toString(maxFociVols) + "\t" 
+                + String.join(",", vesselThMethods) + "\t" + Arrays.toString(minVesselVols) + "\t" + Arrays.toString(dilVessels) + "\t" + maxVesselVol);
+    }
+
+
+    /**
+     * Add swept settings to properties, with keys read by Tools.loadParams
+     */
+    public void saveParams(Properties params) {
+        params.setProperty("sweep.fociThMethods", String.join(",", fociThMethods));
+        params.setProperty("sweep.minFociVols", joinValues(minFociVols));
+        params.setProperty("sweep.maxFociVols", joinValues(maxFociVols));
+        params.setProperty("sweep.vesselThMethods", String.join(",", vesselThMethods));
+        params.setProperty("sweep.minVesselVols", joinValues(minVesselVols));
+        params.setProperty("sweep.dilVessels", joinValues(dilVessels));
+    }
+
+
+    private static String joinValues(double[] values) {
+        return(Arrays.stream(values).mapToObj(Double::toString).collect(Collectors.joining(",")));
+    }
+
+
+    /**
+     * Results file header, settings columns follow image name
+     */
+    public String getHeader() {
+        return(Tools.RESULTS_HEADER.replace("Image name\t", "Image name\t" + PARAMS_HEADER));
+    }
+
+
+    /**
+     * Return results rows of image, one per settings combination
+     */
+    public String run(Tools tools, ImagePlus imgVessel, ImagePlus imgGeneX, RoiMask roiMask, String rootName) {
+        tools.print("- Sweeping " + getNbCombinations() + " settings combinations -");
+
+        // GeneX dots of all foci settings, DoG filtered once
+        List<DotStore> genesPops = new ArrayList<>();
+        List<String> genesKeys = new ArrayList<>();
+        ImagePlus imgDOG = tools.filterGenes(imgGeneX);
+        StackHistogram genesHisto = tools.histogram(imgDOG.getStack());
+        for (String thMethod: fociThMethods) {
+            RunLabeller labeller = label(tools, imgDOG, genesHisto, thMethod, roiMask);
+            for (double minVol: minFociVols) {
+                for (double maxVol: maxFociVols) {
+                    genesPops.add(tools.getDotsFromLabeller(labeller, null, minVol, maxVol));
+                    genesKeys.add(thMethod + "\t" + minVol + "\t" + maxVol + "\t");
+                }
+            }
+        }
+        tools.flushCloseImg(imgDOG);
+
+        // Vessels populations, LoG filtered once, distances to vessels of all dots computed once per population
+        StringBuilder rows = new StringBuilder();
+        ImagePlus imgLOG = tools.filterVessels(imgVessel);
+        StackHistogram vesselsHisto = tools.histogram(imgLOG.getStack());
+        for (String thMethod: vesselThMethods) {
+            RunLabeller labeller = label(tools, imgLOG, vesselsHisto, thMethod, roiMask);
+            for (double minVol: minVesselVols) {
+                Objects3DIntPopulation vesselsPop = tools.getPopFromLabeller(labeller, null, minVol, maxVesselVol);
+                StageMetrics.Stage stage = tools.metrics.start("in/out");
+                DistanceMap.Columns vesselsDist = tools.vesselsDistance(vesselsPop, imgGeneX, genesPops);
+                stage.stop();
+                for (double dil: dilVessels) {
+                    for (int g = 0; g < genesPops.size(); g++) {
+                        stage = tools.metrics.start("in/out");
+                        List<DotStore> inOutPops = tools.classifyDots(genesPops.get(g), vesselsDist, dil, imgGeneX);
+                        stage.stop();
+                        String imgName = rootName + "\t" + genesKeys.get(g) + thMethod + "\t" + minVol + "\t" + dil;
+                        rows.append(tools.formatResults(vesselsPop, inOutPops.get(0), inOutPops.get(1), imgGeneX, roiMask, imgName));
+                    }
+                }
+            }
+        }
+        tools.flushCloseImg(imgLOG);
+        tools.clearMeasures();
+        return(rows.toString());
+    }
+
+
+    /**
+     * Threshold filtered image with histo value of thMethod, clear ROIs and label components plane by plane
+     */
+    private RunLabeller label(Tools tools, ImagePlus imgFilter, StackHistogram histo, String thMethod, RoiMask roiMask) {
+        StageMetrics.Stage stage = tools.metrics.start("threshold");
+        float th = histo.thresholdValue(thMethod);
+        stage.stop();
+        return(tools.label(imgFilter.getStack(), th, roiMask));
+    }
+}
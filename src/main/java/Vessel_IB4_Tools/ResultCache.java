@@ -0,0 +1,107 @@
+package Vessel_IB4_Tools;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Results rows of analyzed images, kept in Results/cache with the key of their inputs
+ * Key is a SHA-256 hash of plugin version, parameters, image files and ROIs file,
+ * an image whose key did not change is not analyzed again
+ * Rows are saved as soon as an image is done, so a stopped batch resumes where it stopped
+ * @author ORION-CIRB
+ */
+public class ResultCache {
+
+    // Bytes hashed at start and end of image files, with their size and modification time
+    private static final int SAMPLE_BYTES = 1 << 20;
+
+    private final File cacheDir;
+
+
+    public ResultCache(String outDirResults) {
+        cacheDir = new File(outDirResults, "cache");
+        cacheDir.mkdirs();
+    }
+
+
+    /**
+     * Plugin version from jar manifest
+     */
+    public static String getVersion() {
+        String version = ResultCache.class.getPackage().getImplementationVersion();
+        return((version == null) ? "dev" : version);
+    }
+
+
+    /**
+     * Key of an image analysis
+     * imageFiles are all files read for the image, roiFile may not exist
+     */
+    public static String key(String params, String[] imageFiles, String roiFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update((getVersion() + "\n" + params + "\n").getBytes(StandardCharsets.UTF_8));
+        for (String imageFile: imageFiles) {
+            File file = new File(imageFile);
+            digest.update((file.getName() + "\t" + file.length() + "\t" + file.lastModified() + "\n").getBytes(StandardCharsets.UTF_8));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                byte[] buffer = new byte[(int) Math.min(SAMPLE_BYTES, raf.length())];
+                raf.readFully(buffer);
+                digest.update(buffer);
+                raf.seek(raf.length() - buffer.length);
+                raf.readFully(buffer);
+                digest.update(buffer);
+            }
+        }
+        File roi = new File(roiFile);
+        if (roi.exists())
+            digest.update(Files.readAllBytes(roi.toPath()));
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b: digest.digest())
+            hex.append(String.format("%02x", b));
+        return(hex.toString());
+    }
+
+
+    /**
+     * Cached results rows of image rootName, null if key changed or an output file is missing
+     */
+    public String get(String rootName, String key, String... outputFiles) throws IOException {
+        File file = new File(cacheDir, rootName + ".txt");
+        if (!file.exists())
+            return(null);
+        for (String outputFile: outputFiles)
+            if (!new File(outputFile).exists())
+                return(null);
+        String cached = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        int endKey = cached.indexOf('\n');
+        if (endKey < 0 || !cached.substring(0, endKey).equals(key))
+            return(null);
+        return(cached.substring(endKey + 1));
+    }
+
+
+    /**
+     * Save results rows of image rootName with their key
+     * Written to a temporary file first, a crash never leaves a partial entry
+     */
+    public void put(String rootName, String key, String rows) throws IOException {
+        Path tmp = new File(cacheDir, rootName + ".tmp").toPath();
+        Files.write(tmp, (key + "\n" + rows).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, new File(cacheDir, rootName + ".txt").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,168 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.io.RoiDecoder;
+import ij.process.ByteProcessor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/**
+ * Artefact ROIs of an image rasterized once into a 2D bitmask
+ * Used to clear ROIs in every slice of binary images and to compute ROIs volume,
+ * pixels covered by several ROIs are counted once
+ * Masks are cached per ROIs file and reused until the file is modified
+ * @author ORION-CIRB
+ */
+public class RoiMask {
+
+    // Cached masks by ROIs file path, released by GC if memory runs low
+    private static final Map<String, SoftReference<RoiMask>> cache = new ConcurrentHashMap<>();
+
+    private final int width, height;
+    private final long lastModified;
+    private final long[] bits;
+    private final int count;
+
+
+    private RoiMask(Roi[] rois, int width, int height, long lastModified) {
+        this.width = width;
+        this.height = height;
+        this.lastModified = lastModified;
+        ByteProcessor ip = new ByteProcessor(width, height);
+        ip.setValue(1);
+        for (Roi roi: rois)
+            ip.fill(roi);
+
+        bits = new long[(width*height + 63) / 64];
+        byte[] pixels = (byte[]) ip.getPixels();
+        int n = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != 0) {
+                bits[i >> 6] |= 1L << (i & 63);
+                n++;
+            }
+        }
+        count = n;
+    }
+
+
+    /**
+     * Mask of ROIs in roiFile (.zip or .roi) for an image of width x height
+     * Empty mask if roiFile does not exist
+     */
+    public static RoiMask load(String roiFile, int width, int height) throws IOException {
+        File file = new File(roiFile);
+        if (!file.exists())
+            return(new RoiMask(new Roi[0], width, height, 0));
+
+        long lastModified = file.lastModified();
+        SoftReference<RoiMask> ref = cache.get(file.getAbsolutePath());
+        RoiMask mask = (ref == null) ? null : ref.get();
+        if (mask != null && mask.lastModified == lastModified && mask.width == width && mask.height == height)
+            return(mask);
+
+        mask = new RoiMask(readRois(file), width, height, lastModified);
+        cache.put(file.getAbsolutePath(), new SoftReference<>(mask));
+        return(mask);
+    }
+
+
+    /**
+     * Read ROIs of a .roi file or of the .roi entries of a .zip file
+     * Decoded without RoiManager, so that no window is needed in headless mode
+     */
+    private static Roi[] readRois(File file) throws IOException {
+        List<Roi> rois = new ArrayList<>();
+        if (file.getName().endsWith(".zip")) {
+            try (ZipInputStream zip = new ZipInputStream(new FileInputStream(file))) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (!entry.getName().endsWith(".roi"))
+                        continue;
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = zip.read(buffer)) > 0)
+                        bytes.write(buffer, 0, n);
+                    Roi roi = RoiDecoder.openFromByteArray(bytes.toByteArray());
+                    if (roi != null)
+                        rois.add(roi);
+                }
+            }
+        } else {
+            Roi roi = RoiDecoder.open(file.getPath());
+            if (roi != null)
+                rois.add(roi);
+        }
+        return(rois.toArray(new Roi[0]));
+    }
+
+
+    /**
+     * Return true if no pixel is covered by ROIs
+     */
+    public boolean isEmpty() {
+        return(count == 0);
+    }
+
+
+    /**
+     * Number of pixels covered by ROIs in a slice
+     */
+    public int getCount() {
+        return(count);
+    }
+
+
+    /**
+     * ROIs volume over the nbSlices of an image
+     */
+    public double getVolume(Calibration cal, int nbSlices) {
+        return(count * cal.pixelWidth * cal.pixelHeight * cal.pixelDepth * nbSlices);
+    }
+
+
+    /**
+     * Set ROIs pixels to 0 in every slice of img, slices in parallel
+     */
+    public ImagePlus clear(ImagePlus img) {
+        if (isEmpty())
+            return(img);
+        IntStream.range(1, img.getNSlices()+1).parallel().forEach(z -> clear(img.getStack().getPixels(z)));
+        return(img);
+    }
+
+
+    /**
+     * Set ROIs pixels to 0 in a slice of byte, short or float pixels
+     */
+    public void clear(Object pixels) {
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                if (pixels instanceof byte[])
+                    ((byte[]) pixels)[i] = 0;
+                else if (pixels instanceof short[])
+                    ((short[]) pixels)[i] = 0;
+                else
+                    ((float[]) pixels)[i] = 0;
+                word &= word - 1;
+            }
+        }
+    }
+}
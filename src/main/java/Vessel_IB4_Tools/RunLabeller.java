@@ -0,0 +1,259 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import mcib3d.geom2.Objects3DIntPopulation;
+
+
+/**
+ * 26-connected components labelling of a binary image, streamed slice by slice
+ * First pass encodes foreground as runs {z, y, xStart, xEnd} and merges runs
+ * touching runs of the previous row or slice with a union-find,
+ * second pass resolves labels, size filtering can then be applied with several volume ranges
+ * Slices can be given one at a time with addSlice, the image is then never held as a whole
+ * Only kept components are copied to a DotStore, and converted to objects if needed
+ * @author ORION-CIRB
+ */
+public class RunLabeller {
+
+    private int nbRuns = 0;
+    private int[] runZ = new int[1024];
+    private int[] runY = new int[1024];
+    private int[] runX0 = new int[1024];
+    private int[] runX1 = new int[1024];
+    // Provisional label of runs, then component root
+    private int[] runLabel = new int[1024];
+    // Object label of runs after size filtering (0 if component is filtered out)
+    private int[] runObject;
+
+    private int nbLabels = 0;
+    private int[] parent = new int[1024];
+    private long[] componentSize;
+    private int nbComponents = 0;
+    private int nbObjects = 0;
+
+    // First pass state: runs index of rows of the current and previous slices
+    private final int width, height;
+    private int nbSlices = 0;
+    private int[] rowStart;
+    private int[] prevRowStart = null;
+
+
+    public RunLabeller(ImagePlus imgBin) {
+        this(imgBin.getWidth(), imgBin.getHeight());
+        for (int z = 0; z < imgBin.getNSlices(); z++)
+            addSlice(imgBin.getStack().getProcessor(z+1));
+        finish();
+    }
+
+
+    /**
+     * Labeller of a width x height binary image given slice by slice with addSlice, then finish
+     */
+    public RunLabeller(int width, int height) {
+        this.width = width;
+        this.height = height;
+        rowStart = new int[height+1];
+    }
+
+
+    /**
+     * First pass: find runs of next slice and merge connected runs
+     * Only runs of the previous slice are looked at, as a contiguous range
+     * ip can be reused by the caller once added
+     */
+    public void addSlice(ImageProcessor ip) {
+        if (runObject != null)
+            throw new IllegalStateException("Labelling is finished");
+        int z = nbSlices++;
+        for (int y = 0; y < height; y++) {
+            rowStart[y] = nbRuns;
+            int x = 0;
+            while (x < width) {
+                if (ip.getf(x, y) == 0) {
+                    x++;
+                    continue;
+                }
+                int x0 = x;
+                while (x < width && ip.getf(x, y) != 0)
+                    x++;
+                int r = addRun(z, y, x0, x-1);
+
+                // Previous row of this slice
+                if (y > 0)
+                    mergeRuns(r, rowStart[y-1], rowStart[y]);
+                // Rows y-1 to y+1 of previous slice
+                if (prevRowStart != null)
+                    mergeRuns(r, prevRowStart[Math.max(0, y-1)], prevRowStart[Math.min(height, y+2)]);
+                if (runLabel[r] == 0)
+                    runLabel[r] = newLabel();
+            }
+        }
+        rowStart[height] = nbRuns;
+        if (prevRowStart == null)
+            prevRowStart = new int[height+1];
+        System.arraycopy(rowStart, 0, prevRowStart, 0, height+1);
+    }
+
+
+    /**
+     * End first pass once all slices are added, components can then be filtered and converted
+     */
+    public void finish() {
+        rowStart = null;
+        prevRowStart = null;
+        resolve();
+    }
+
+
+    /**
+     * Merge run r with runs of index in [from, to[ that touch it (8-connectivity along x)
+     */
+    private void mergeRuns(int r, int from, int to) {
+        for (int n = from; n < to; n++) {
+            if (runX0[n] > runX1[r]+1 || runX1[n] < runX0[r]-1)
+                continue;
+            if (runLabel[r] == 0)
+                runLabel[r] = find(runLabel[n]);
+            else
+                union(runLabel[r], runLabel[n]);
+        }
+    }
+
+
+    private int addRun(int z, int y, int x0, int x1) {
+        if (nbRuns == runZ.length) {
+            int size = 2*nbRuns;
+            runZ = Arrays.copyOf(runZ, size);
+            runY = Arrays.copyOf(runY, size);
+            runX0 = Arrays.copyOf(runX0, size);
+            runX1 = Arrays.copyOf(runX1, size);
+            runLabel = Arrays.copyOf(runLabel, size);
+        }
+        runZ[nbRuns] = z;
+        runY[nbRuns] = y;
+        runX0[nbRuns] = x0;
+        runX1[nbRuns] = x1;
+        runLabel[nbRuns] = 0;
+        return(nbRuns++);
+    }
+
+
+    private int newLabel() {
+        nbLabels++;
+        if (nbLabels == parent.length)
+            parent = Arrays.copyOf(parent, 2*parent.length);
+        parent[nbLabels] = nbLabels;
+        return(nbLabels);
+    }
+
+
+    private int find(int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return(label);
+    }
+
+
+    private void union(int label1, int label2) {
+        int root1 = find(label1);
+        int root2 = find(label2);
+        if (root1 != root2)
+            parent[Math.max(root1, root2)] = Math.min(root1, root2);
+    }
+
+
+    /**
+     * Second pass: replace provisional labels with components roots and count components voxels
+     */
+    private void resolve() {
+        componentSize = new long[nbLabels+1];
+        for (int r = 0; r < nbRuns; r++) {
+            runLabel[r] = find(runLabel[r]);
+            componentSize[runLabel[r]] += runX1[r] - runX0[r] + 1;
+        }
+        parent = null;
+        runObject = new int[nbRuns];
+        filterSize(0, Double.MAX_VALUE);
+    }
+
+
+    /**
+     * Keep components with minVox <= voxels count <= maxVox
+     * Kept components are numbered from 1 in raster order of their first voxel
+     */
+    public void filterSize(double minVox, double maxVox) {
+        int[] objectLabel = new int[nbLabels+1];
+        nbComponents = 0;
+        nbObjects = 0;
+        for (int r = 0; r < nbRuns; r++) {
+            int root = runLabel[r];
+            if (objectLabel[root] == 0) {
+                nbComponents++;
+                objectLabel[root] = (componentSize[root] < minVox || componentSize[root] > maxVox) ? -1 : ++nbObjects;
+            }
+            runObject[r] = Math.max(0, objectLabel[root]);
+        }
+    }
+
+
+    /**
+     * Number of connected components before size filtering
+     */
+    public int getNbComponents() {
+        return(nbComponents);
+    }
+
+
+    /**
+     * Memory used by runs records, in bytes
+     */
+    public long getRunsBytes() {
+        return(6L * Integer.BYTES * runZ.length);
+    }
+
+
+    /**
+     * Convert kept components to a population calibrated with cal
+     * Objects are measured at the same time, with intensities of imgInt if not null
+     */
+    public Objects3DIntPopulation getPopulation(Calibration cal, ImagePlus imgInt, ObjectsMeasure measure) {
+        return(getDots(cal, imgInt, measure).toPopulation());
+    }
+
+
+    /**
+     * Copy runs of kept components to a DotStore, no voxel object is created
+     * Objects are measured at the same time, with intensities of imgInt if not null
+     */
+    public DotStore getDots(Calibration cal, ImagePlus imgInt, ObjectsMeasure measure) {
+        // Sort runs by final label
+        int[] start = new int[nbObjects+2];
+        for (int r = 0; r < nbRuns; r++)
+            start[runObject[r]+1]++;
+        for (int l = 1; l <= nbObjects+1; l++)
+            start[l] += start[l-1];
+        int[] order = new int[nbRuns];
+        int[] next = Arrays.copyOf(start, start.length);
+        for (int r = 0; r < nbRuns; r++)
+            order[next[runObject[r]]++] = r;
+
+        ImageProcessor[] ips = ObjectsMeasure.getProcessors(imgInt);
+        DotStore dots = new DotStore(cal, measure);
+        for (int l = 1; l <= nbObjects; l++) {
+            dots.addObject(l);
+            for (int i = start[l]; i < start[l+1]; i++) {
+                int r = order[i];
+                dots.addRun(runZ[r], runY[r], runX0[r], runX1[r]);
+                for (int x = runX0[r]; x <= runX1[r]; x++)
+                    measure.add(l, x, runY[r], runZ[r], (ips == null) ? 0 : ips[runZ[r]].getf(x, runY[r]));
+            }
+        }
+        return(dots);
+    }
+}
@@ -0,0 +1,189 @@
+package Vessel_IB4_Tools;
+
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Intermediate image stored in a memory-mapped scratch file instead of the Java heap
+ * Planes are read and written as copies with getPixels/getProcessor and setPixels,
+ * a processor returned by getProcessor must be given back with setPixels to keep its changes
+ * The file is kept until close, which unmaps the planes then deletes it, so the stack
+ * must not be read anymore once closed
+ * @author ORION-CIRB
+ */
+public class ScratchStack extends VirtualStack {
+
+    private final int bitDepth;
+    private final File file;
+    private MappedByteBuffer[] planes;
+
+
+    private ScratchStack(int width, int height, int depth, int bitDepth, File dir) throws IOException {
+        super(width, height);
+        this.bitDepth = bitDepth;
+        long planeBytes = (long) width * height * (bitDepth / 8);
+        dir.mkdirs();
+        file = File.createTempFile("scratch", ".raw", dir);
+        planes = new MappedByteBuffer[depth];
+        // One mapping per plane, a mapping can't exceed 2 GB
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(planeBytes * depth);
+            for (int z = 0; z < depth; z++)
+                planes[z] = channel.map(FileChannel.MapMode.READ_WRITE, z*planeBytes, planeBytes);
+        } catch (IOException ex) {
+            file.delete();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Empty stack of depth planes of 8, 16 or 32-bit pixels, in a scratch file of dir
+     */
+    public static ScratchStack create(int width, int height, int depth, int bitDepth, String dir) throws IOException {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+        return(new ScratchStack(width, height, depth, bitDepth, new File(dir)));
+    }
+
+
+    @Override
+    public int getSize() {
+        return(planes.length);
+    }
+
+
+    @Override
+    public int size() {
+        return(getSize());
+    }
+
+
+    @Override
+    public int getBitDepth() {
+        return(bitDepth);
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return(null);
+    }
+
+
+    /**
+     * Copy of plane n (1-based)
+     */
+    @Override
+    public Object getPixels(int n) {
+        ByteBuffer plane = planes[n-1].duplicate().order(ByteOrder.nativeOrder());
+        int size = getWidth()*getHeight();
+        switch (bitDepth) {
+            case 8 :
+                byte[] bytes = new byte[size];
+                plane.get(bytes);
+                return(bytes);
+            case 16 :
+                short[] shorts = new short[size];
+                plane.asShortBuffer().get(shorts);
+                return(shorts);
+            default :
+                float[] floats = new float[size];
+                plane.asFloatBuffer().get(floats);
+                return(floats);
+        }
+    }
+
+
+    /**
+     * Write pixels into plane n (1-based)
+     */
+    @Override
+    public void setPixels(Object pixels, int n) {
+        ByteBuffer plane = planes[n-1].duplicate().order(ByteOrder.nativeOrder());
+        switch (bitDepth) {
+            case 8 :
+                plane.put((byte[]) pixels);
+                break;
+            case 16 :
+                plane.asShortBuffer().put((short[]) pixels);
+                break;
+            default :
+                plane.asFloatBuffer().put((float[]) pixels);
+        }
+    }
+
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8 :
+                return(new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels));
+            case 16 :
+                return(new ShortProcessor(getWidth(), getHeight(), (short[]) pixels, null));
+            default :
+                return(new FloatProcessor(getWidth(), getHeight(), (float[]) pixels));
+        }
+    }
+
+
+    @Override
+    public Object[] getImageArray() {
+        return(null);
+    }
+
+
+    /**
+     * Unmap planes and delete the scratch file
+     * If a mapping can't be released (unknown JVM), the file is deleted on exit
+     */
+    public void close() {
+        boolean unmapped = true;
+        for (MappedByteBuffer plane: planes)
+            unmapped &= unmap(plane);
+        planes = new MappedByteBuffer[0];
+        if (!unmapped || !file.delete())
+            file.deleteOnExit();
+    }
+    
+    
+    /**
+     * Release a mapping now instead of when it is garbage collected, return false if it can't be done
+     * Unsafe.invokeCleaner from Java 9, DirectByteBuffer cleaner on Java 8
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException ex) {
+                Method getCleaner = buffer.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                Object cleaner = getCleaner.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return(true);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return(false);
+        }
+    }
+}
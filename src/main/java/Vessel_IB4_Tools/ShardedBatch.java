@@ -0,0 +1,336 @@
+package Vessel_IB4_Tools;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Split a folder analysis between several processes or machines sharing the results folder
+ * Shard index analyzes first images i with i % count == index, then the images left by other shards
+ * An image is claimed by creating its lock file in Results/locks, the lock is marked done when its
+ * results are written; locks being analyzed are touched every timeout/4 by a heartbeat, so a lock
+ * not modified for timeout and not done belongs to a crashed shard and is taken over
+ * Each shard writes its rows in results_shard<index>.xls, merged into results.xls in images order
+ * @author ORION-CIRB
+ */
+public class ShardedBatch {
+
+    private static final String DONE = "done";
+
+    private final String outDirResults;
+    private final File lockDir;
+    private final int index;
+    private final int count;
+    private final long timeoutMs;
+    private final long heartbeatMs;
+    // Owner of locks claimed by this shard and not yet done or released, by image
+    private final Map<String, String> claimed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+
+    public ShardedBatch(String outDirResults, int index, int count, double timeoutMinutes) {
+        if (index < 0 || index >= count)
+            throw new IllegalArgumentException("Shard index " + index + " out of range for " + count + " shards");
+        this.outDirResults = outDirResults;
+        this.lockDir = new File(outDirResults, "locks");
+        this.index = index;
+        this.count = count;
+        this.timeoutMs = (long) (timeoutMinutes * 60000);
+        this.heartbeatMs = Math.max(100, timeoutMs / 4);
+        lockDir.mkdirs();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "shard " + index + " heartbeat");
+            thread.setDaemon(true);
+            return(thread);
+        });
+        heartbeat.scheduleWithFixedDelay(this::touchClaimed, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Images of this shard first, then images of other shards, each in folder order
+     */
+    public List<String> order(List<String> imageFiles) {
+        List<String> ordered = new ArrayList<>();
+        for (int i = 0; i < imageFiles.size(); i++)
+            if (i % count == index)
+                ordered.add(imageFiles.get(i));
+        for (int i = 0; i < imageFiles.size(); i++)
+            if (i % count != index)
+                ordered.add(imageFiles.get(i));
+        return(ordered);
+    }
+
+
+    /**
+     * Partial results file of this shard
+     */
+    public String getPartialFile() {
+        return(outDirResults + "results_shard" + index + ".xls");
+    }
+
+
+    private Path lockPath(String rootName) {
+        return(new File(lockDir, rootName + ".lock").toPath());
+    }
+
+
+    /**
+     * Claim image rootName, return false if it is done or being analyzed by another shard
+     * Its lock is kept fresh by the heartbeat until done or release
+     */
+    public boolean claim(String rootName) throws IOException {
+        Path lock = lockPath(rootName);
+        // Unique owner, a lock taken over and claimed again by the same shard has another one
+        String owner = "shard " + index + " " + System.nanoTime() + " " + System.currentTimeMillis();
+        if (create(lock, owner))
+            return(true);
+
+        // Take over lock of a crashed shard
+        String content;
+        try {
+            content = read(lock);
+            if (content.equals(DONE) || !isStale(lock))
+                return(false);
+        } catch (NoSuchFileException ex) {
+            // Lock released meanwhile
+            return(create(lock, owner));
+        }
+        // One takeover at a time, it moves the stale lock aside atomically then checks that it moved the lock
+        // it read and not a lock done or claimed meanwhile, which is put back
+        Path takeover = new File(lockDir, rootName + ".lock.takeover").toPath();
+        try {
+            Files.write(takeover, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        } catch (FileAlreadyExistsException ex) {
+            // Left by a shard crashed during its takeover
+            try {
+                if (isStale(takeover))
+                    Files.deleteIfExists(takeover);
+            } catch (NoSuchFileException ex2) {
+                // Takeover ended meanwhile
+            }
+            return(false);
+        }
+        try {
+            // Lock read before another takeover ended
+            if (!read(lock).equals(content) || !isStale(lock))
+                return(false);
+            Path stale = new File(lockDir, rootName + ".lock.stale" + index).toPath();
+            try {
+                Files.move(lock, stale, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException ex) {
+                return(false);
+            }
+            if (!read(stale).equals(content) || !isStale(stale)) {
+                // Not atomic, an atomic rename would replace a lock created meanwhile
+                try {
+                    Files.move(stale, lock);
+                } catch (FileAlreadyExistsException ex) {
+                    Files.delete(stale);
+                }
+                return(false);
+            }
+            Files.delete(stale);
+            if (!create(lock, owner))
+                return(false);
+            System.out.println("Shard " + index + " takes over stale lock of " + rootName);
+            return(true);
+        } finally {
+            Files.deleteIfExists(takeover);
+        }
+    }
+
+
+    /**
+     * Create lock with owner if it does not exist, and keep it fresh with the heartbeat
+     */
+    private boolean create(Path lock, String owner) throws IOException {
+        try {
+            Files.write(lock, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        } catch (FileAlreadyExistsException ex) {
+            return(false);
+        }
+        claimed.put(lock.getFileName().toString(), owner);
+        return(true);
+    }
+
+
+    private static String read(Path lock) throws IOException {
+        return(new String(Files.readAllBytes(lock), StandardCharsets.UTF_8));
+    }
+
+
+    private boolean isStale(Path lock) throws IOException {
+        return(System.currentTimeMillis() - Files.getLastModifiedTime(lock).toMillis() >= timeoutMs);
+    }
+
+
+    /**
+     * Heartbeat, touch locks still owned by this shard
+     */
+    private void touchClaimed() {
+        for (Map.Entry<String, String> e: claimed.entrySet()) {
+            Path lock = new File(lockDir, e.getKey()).toPath();
+            try {
+                if (read(lock).equals(e.getValue()))
+                    Files.setLastModifiedTime(lock, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ex) {
+                // Lock done, released or taken over meanwhile
+            }
+        }
+    }
+
+
+    /**
+     * Mark image rootName as done
+     */
+    public void done(String rootName) throws IOException {
+        claimed.remove(lockPath(rootName).getFileName().toString());
+        Path tmp = new File(lockDir, rootName + ".lock." + index).toPath();
+        Files.write(tmp, DONE.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, lockPath(rootName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     * Release claim on image rootName after a failure, so that another shard can retry it
+     */
+    public void release(String rootName) throws IOException {
+        claimed.remove(lockPath(rootName).getFileName().toString());
+        Files.deleteIfExists(lockPath(rootName));
+    }
+
+
+    /**
+     * Images not done yet, in the order of this shard
+     */
+    public List<String> pending(List<String> imageFiles) throws IOException {
+        List<String> pending = new ArrayList<>();
+        for (String f: order(imageFiles)) {
+            Path lock = lockPath(FilenameUtils.getBaseName(f));
+            try {
+                if (!read(lock).equals(DONE))
+                    pending.add(f);
+            } catch (NoSuchFileException ex) {
+                pending.add(f);
+            }
+        }
+        return(pending);
+    }
+
+
+    /**
+     * Wait before claiming again images analyzed by other shards, one heartbeat period up to 10 s
+     */
+    public void await() throws InterruptedException {
+        Thread.sleep(Math.min(heartbeatMs, 10000));
+    }
+
+
+    /**
+     * Stop the heartbeat, locks still claimed become stale after timeout
+     */
+    public void close() {
+        heartbeat.shutdownNow();
+    }
+
+
+    /**
+     * Return true if all images are done
+     */
+    public boolean allDone(List<String> imageFiles) throws IOException {
+        return(pending(imageFiles).isEmpty());
+    }
+
+
+    /**
+     * Merge partial results files of all shards into results.xls, through results.xls.tmp.<index>
+     * so that shards finishing together don't share a temporary file
+     */
+    public boolean merge(List<String> imageFiles) throws IOException {
+        return(merge(outDirResults, imageFiles, Integer.toString(index)));
+    }
+
+
+    /**
+     * Merge partial results files of all shards into results.xls, through results.xls.tmp.merge
+     */
+    public static boolean merge(String outDirResults, List<String> imageFiles) throws IOException {
+        return(merge(outDirResults, imageFiles, "merge"));
+    }
+
+
+    /**
+     * Merge partial results files of all shards into results.xls
+     * Results files are written by FileWriter, in platform default charset
+     * Rows are written in imageFiles order, under the common header
+     * Return false if a partial file has another header or rows of an image are missing
+     */
+    private static boolean merge(String outDirResults, List<String> imageFiles, String tmpSuffix) throws IOException {
+        File[] partials = new File(outDirResults).listFiles((dir, name) -> name.matches("results_shard\\d+\\.xls"));
+        if (partials == null || partials.length == 0) {
+            System.out.println("No partial results in " + outDirResults);
+            return(false);
+        }
+
+        // Rows by image name, first column
+        String header = null;
+        Map<String, StringBuilder> rows = new LinkedHashMap<>();
+        for (File partial: partials) {
+            List<String> lines = Files.readAllLines(partial.toPath(), Charset.defaultCharset());
+            if (lines.isEmpty())
+                continue;
+            if (header == null) {
+                header = lines.get(0);
+            } else if (!header.equals(lines.get(0))) {
+                System.out.println("Header of " + partial.getName() + " differs, shards were run with different parameters");
+                return(false);
+            }
+            Map<String, StringBuilder> partialRows = new LinkedHashMap<>();
+            for (String line: lines.subList(1, lines.size())) {
+                String name = line.split("\t", 2)[0];
+                partialRows.computeIfAbsent(name, k -> new StringBuilder()).append(line).append("\n");
+            }
+            // An image analyzed twice after a lock takeover keeps its first rows
+            for (Map.Entry<String, StringBuilder> e: partialRows.entrySet())
+                rows.putIfAbsent(e.getKey(), e.getValue());
+        }
+
+        if (header == null)
+            return(false);
+        StringBuilder merged = new StringBuilder(header).append("\n");
+        boolean complete = true;
+        for (String f: imageFiles) {
+            StringBuilder imageRows = rows.get(FilenameUtils.getBaseName(f));
+            if (imageRows == null) {
+                System.out.println("No results for " + f);
+                complete = false;
+            } else {
+                merged.append(imageRows);
+            }
+        }
+        Path tmp = new File(outDirResults, "results.xls.tmp." + tmpSuffix).toPath();
+        Files.write(tmp, merged.toString().getBytes(Charset.defaultCharset()));
+        Files.move(tmp, new File(outDirResults, "results.xls").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return(complete);
+    }
+}
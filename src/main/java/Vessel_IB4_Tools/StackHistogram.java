@@ -0,0 +1,135 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+
+
+/**
+ * Histogram of a stack with 256 bins between stack min and max, binned as ImageJ does
+ * when converting to 8-bit before an auto-threshold
+ * Built once, gives the threshold value of any AutoThresholder method
+ * Can be built incrementally, plane by plane or block by block: values range is first
+ * taken from all planes with addRange, then voxels are counted with add
+ * With a sampling of n, one voxel out of n is counted, picked at random in each run of n voxels,
+ * the range is still computed on all voxels so that bins are the same as without sampling
+ * @author ORION-CIRB
+ */
+public class StackHistogram {
+    
+    public static final int NBINS = 256;
+    
+    private final int sampling;
+    private float min = Float.MAX_VALUE;
+    private float max = -Float.MAX_VALUE;
+    private final int[] histo = new int[NBINS];
+    // Planes counted so far, seeds sampling offsets
+    private int nbPlanes = 0;
+    
+    
+    /**
+     * Empty histogram counting one voxel out of sampling, filled with addRange then add
+     */
+    public StackHistogram(int sampling) {
+        if (sampling < 1)
+            throw new IllegalArgumentException("Sampling must be >= 1, not " + sampling);
+        this.sampling = sampling;
+    }
+    
+    
+    /**
+     * Histogram of stack, read plane by plane
+     */
+    public StackHistogram(ImageStack stack) {
+        this(stack, 1);
+    }
+    
+    
+    /**
+     * Histogram of stack counting one voxel out of sampling, read plane by plane
+     */
+    public StackHistogram(ImageStack stack, int sampling) {
+        this(sampling);
+        for (int z = 1; z <= stack.getSize(); z++)
+            addRange(stack.getProcessor(z));
+        for (int z = 1; z <= stack.getSize(); z++)
+            add(stack.getProcessor(z));
+    }
+    
+    
+    /**
+     * Extend values range with all voxels of ip, must be called for every plane or block before add
+     */
+    public void addRange(ImageProcessor ip) {
+        if (nbPlanes > 0)
+            throw new IllegalStateException("Range can't change once voxels are counted");
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+            float v = ip.getf(i);
+            if (v < min) min = v;
+            if (v > max) max = v;
+        }
+    }
+    
+    
+    /**
+     * Count voxels of ip, one out of sampling
+     */
+    public void add(ImageProcessor ip) {
+        int n = ip.getPixelCount();
+        if (sampling == 1) {
+            for (int i = 0; i < n; i++)
+                histo[valueToBin(ip.getf(i))]++;
+        } else {
+            for (int s = 0; s < n; s += sampling) {
+                int i = s + sampleOffset(nbPlanes, s / sampling);
+                if (i < n)
+                    histo[valueToBin(ip.getf(i))]++;
+            }
+        }
+        nbPlanes++;
+    }
+    
+    
+    /**
+     * Pseudo-random offset of the voxel counted in run number stratum of plane
+     */
+    private int sampleOffset(int plane, int stratum) {
+        int h = plane * 0x9E3779B1 + stratum * 0x85EBCA6B;
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        h ^= h >>> 15;
+        return(Math.floorMod(h, sampling));
+    }
+    
+    
+    /**
+     * Histogram bin of value, min-max scaled to 0-255 and rounded as ImageJ converts to 8-bit
+     */
+    public int valueToBin(float v) {
+        if (max <= min)
+            return(0);
+        int bin = (int) ((v - min) * ((NBINS - 1) / ((double) max - min)) + 0.5);
+        return(Math.max(0, Math.min(NBINS - 1, bin)));
+    }
+    
+    
+    /**
+     * Threshold value of an AutoThresholder method, voxels >= value are foreground
+     * Same value as ImageProcessor.setAutoThreshold with a dark background: foreground starts
+     * at the level above the AutoThresholder bin, levels 0-255 being scaled to min-max
+     */
+    public float thresholdValue(String thMed) {
+        int bin = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(thMed), histo.clone());
+        int level = Math.min(bin + 1, NBINS - 1);
+        return((float) (min + level / (double) (NBINS - 1) * (max - min)));
+    }
+    
+    
+    /**
+     * Voxels count of bins, of counted voxels only if sampled
+     */
+    public int[] getHistogram() {
+        return(histo);
+    }
+}
@@ -0,0 +1,184 @@
+package Vessel_IB4_Tools;
+
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+
+/**
+ * Wall time, CPU time, allocated bytes, peak heap and GPU transfers of each analysis stage of an image
+ * Stages with the same name are summed (peak heap is the max)
+ * CPU time and allocated bytes are summed over the thread running the stage and the common ForkJoin pool
+ * threads running its parallel streams; with several images analyzed at a time, the pool work of the
+ * other images is counted too
+ * Peak heap is process wide, it is only recorded (NaN otherwise) when a single image is read or analyzed
+ * at a time, as resetting peaks would disturb stages of other images
+ * @author ORION-CIRB
+ */
+public class StageMetrics {
+    
+    public static final String[] COLUMNS = {"Wall time (ms)", "CPU time (ms)", "Allocated (MB)", "Peak heap (MB)", "GPU push (MB)", "GPU pull (MB)"};
+    private static final ThreadLocal<StageMetrics> CURRENT = new ThreadLocal<>();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final double MB = 1024*1024;
+    
+    private final Map<String, double[]> stages = new LinkedHashMap<>();
+    private final boolean recordPeakHeap;
+    private Stage openStage = null;
+    
+    
+    public StageMetrics() {
+        this(true);
+    }
+    
+    
+    /**
+     * Metrics recording peak heap of stages if recordPeakHeap, to be set only if one image is read or analyzed at a time
+     */
+    public StageMetrics(boolean recordPeakHeap) {
+        this.recordPeakHeap = recordPeakHeap;
+    }
+    
+    
+    /**
+     * A running stage, stop it to record its metrics
+     */
+    public class Stage {
+        private final String name;
+        private final long wallStart = System.nanoTime();
+        private final Thread thread = Thread.currentThread();
+        // CPU time and allocated bytes of stage threads at start, by thread id
+        private final Map<Long, long[]> threadsStart = threadsUsage(thread);
+        private long pushBytes = 0, pullBytes = 0;
+        
+        private Stage(String name) {
+            this.name = name;
+            if (recordPeakHeap)
+                resetPeakHeap();
+        }
+        
+        public void stop() {
+            double[] values = stages.computeIfAbsent(name, k -> new double[COLUMNS.length]);
+            values[0] += (System.nanoTime() - wallStart) / 1e6;
+            // Pool threads started during the stage count from 0, threads ended during the stage are missed
+            long cpu = 0, alloc = 0;
+            for (Map.Entry<Long, long[]> usage: threadsUsage(thread).entrySet()) {
+                long[] start = threadsStart.getOrDefault(usage.getKey(), new long[2]);
+                cpu += Math.max(0, usage.getValue()[0] - start[0]);
+                alloc += Math.max(0, usage.getValue()[1] - start[1]);
+            }
+            values[1] += cpu / 1e6;
+            values[2] += alloc / MB;
+            values[3] = recordPeakHeap ? Math.max(values[3], peakHeap() / MB) : Double.NaN;
+            values[4] += pushBytes / MB;
+            values[5] += pullBytes / MB;
+            if (openStage == this)
+                openStage = null;
+        }
+    }
+    
+    
+    /**
+     * Start a stage of this image
+     */
+    public Stage start(String name) {
+        openStage = new Stage(name);
+        return(openStage);
+    }
+    
+    
+    /**
+     * Make this the metrics of images analyzed by the calling thread
+     */
+    public void attach() {
+        CURRENT.set(this);
+    }
+    
+    
+    public void detach() {
+        CURRENT.remove();
+    }
+    
+    
+    /**
+     * Record a GPU transfer in the running stage of the calling thread, if any
+     */
+    public static void addTransfer(long pushBytes, long pullBytes) {
+        StageMetrics metrics = CURRENT.get();
+        if (metrics != null && metrics.openStage != null) {
+            metrics.openStage.pushBytes += pushBytes;
+            metrics.openStage.pullBytes += pullBytes;
+        }
+    }
+    
+    
+    public Map<String, double[]> getStages() {
+        return(stages);
+    }
+    
+    
+    /**
+     * Write metrics as a CSV file, one row per stage
+     */
+    public void writeCSV(String fileName) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName, false))) {
+            writer.write("Stage," + String.join(",", COLUMNS) + "\n");
+            for (Map.Entry<String, double[]> stage: stages.entrySet()) {
+                writer.write(stage.getKey());
+                for (double v: stage.getValue())
+                    writer.write("," + v);
+                writer.write("\n");
+            }
+        }
+    }
+    
+    
+    /**
+     * CPU time (ns) and allocated bytes of thread and of the live common ForkJoin pool threads, by thread id
+     * Allocated bytes are 0 if the JVM does not give them
+     */
+    private static Map<Long, long[]> threadsUsage(Thread thread) {
+        ThreadGroup root = thread.getThreadGroup();
+        while (root != null && root.getParent() != null)
+            root = root.getParent();
+        Thread[] threads = new Thread[(root == null) ? 0 : 2*root.activeCount() + 1];
+        int nbThreads = (root == null) ? 0 : root.enumerate(threads, true);
+        Map<Long, long[]> usage = new HashMap<>();
+        usage.put(thread.getId(), new long[2]);
+        for (int t = 0; t < nbThreads; t++)
+            if (threads[t] instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) threads[t]).getPool() == ForkJoinPool.commonPool())
+                usage.put(threads[t].getId(), new long[2]);
+        for (Map.Entry<Long, long[]> u: usage.entrySet()) {
+            u.getValue()[0] = THREADS.getThreadCpuTime(u.getKey());
+            if (THREADS instanceof com.sun.management.ThreadMXBean)
+                u.getValue()[1] = ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(u.getKey());
+        }
+        return(usage);
+    }
+    
+    
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+    
+    
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return(peak);
+    }
+}
@@ -0,0 +1,118 @@
+package Vessel_IB4_Tools;
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+
+/**
+ * Buffered CSV writer with a typed schema, one row per object
+ * Header gives column names, types are checked while writing so that every column
+ * can be read back with a single type (string, int or double)
+ * Rows are not flushed one by one, the file is complete once closed
+ * @author ORION-CIRB
+ */
+public class TableWriter implements AutoCloseable {
+
+    public enum Type {STRING, INT, DOUBLE}
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Type[] types;
+    private final Writer out;
+    private int column = 0;
+    private long nbRows = 0;
+
+
+    /**
+     * Create file with header, names[i] is the name of a column of type types[i]
+     */
+    public TableWriter(String file, String[] names, Type[] types) throws IOException {
+        if (names.length != types.length)
+            throw new IllegalArgumentException(names.length + " column names for " + types.length + " types");
+        this.types = types;
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(file)), StandardCharsets.UTF_8), BUFFER_SIZE);
+        for (int i = 0; i < names.length; i++) {
+            writeString(names[i]);
+            out.write((i < names.length-1) ? ',' : '\n');
+        }
+    }
+
+
+    private void next(Type type) throws IOException {
+        if (column == types.length)
+            throw new IllegalStateException("Row has more than " + types.length + " columns");
+        if (types[column] != type)
+            throw new IllegalStateException("Column " + column + " is " + types[column] + ", not " + type);
+        if (column > 0)
+            out.write(',');
+        column++;
+    }
+
+
+    public TableWriter add(String value) throws IOException {
+        next(Type.STRING);
+        writeString(value);
+        return(this);
+    }
+
+
+    public TableWriter add(long value) throws IOException {
+        next(Type.INT);
+        out.write(Long.toString(value));
+        return(this);
+    }
+
+
+    /**
+     * NaN is written as an empty field
+     */
+    public TableWriter add(double value) throws IOException {
+        next(Type.DOUBLE);
+        if (!Double.isNaN(value))
+            out.write(Double.toString(value));
+        return(this);
+    }
+
+
+    /**
+     * End current row, all columns must have been written
+     */
+    public void endRow() throws IOException {
+        if (column != types.length)
+            throw new IllegalStateException("Row has " + column + " columns instead of " + types.length);
+        out.write('\n');
+        column = 0;
+        nbRows++;
+    }
+
+
+    public long getNbRows() {
+        return(nbRows);
+    }
+
+
+    /**
+     * Quote strings holding separators or quotes
+     */
+    private void writeString(String value) throws IOException {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            out.write(value);
+        } else {
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -4,45 +4,34 @@ package Vessel_IB4_Tools;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
-import ij.measure.ResultsTable;
-import ij.plugin.filter.Analyzer;
-import ij.gui.Roi;
-import ij.io.FileSaver;
+import ij.ImageStack;
 import ij.measure.Calibration;
-import ij.plugin.Duplicator;
-import ij.plugin.ImageCalculator;
-import ij.plugin.RGBStackMerge;
 import ij.plugin.ZProjector;
 import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Font;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import javax.swing.ImageIcon;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
-import mcib3d.geom2.BoundingBox;
-import mcib3d.geom2.Object3DComputation;
 import mcib3d.geom2.Object3DInt;
-import mcib3d.geom2.Object3DPlane;
 import mcib3d.geom2.Objects3DIntPopulation;
-import mcib3d.geom2.VoxelInt;
-import mcib3d.geom2.measurements.MeasureIntensity;
-import mcib3d.geom2.measurements.MeasureVolume;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
-import mcib3d.image3d.ImageLabeller;
-import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
-import net.haesleinhuepf.clij2.CLIJ2;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.ArrayUtils;
 
 
 
@@ -51,9 +40,8 @@ import org.apache.commons.io.FilenameUtils;
  */
 public class Tools {
     
-    private final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     private final String urlHelp = "https://github.com/orion-cirb/Vessel_IB4.git";
-    private CLIJ2 clij2 = CLIJ2.getInstance();
+    private FilterEngine filterEngine;
     
     public String[] channelNames = {"Vessels", "GeneX"};
     public Calibration cal;
@@ -71,8 +59,102 @@ public class Tools {
     private int dilVessel = 2;
     private double minVesselVol = 400;
     private double maxVesselVol = Double.MAX_VALUE;
+    private double sigmaLOGVessel = 20;
+    
+    // Tiling, block size in pixels (0 = whole image)
+    public int blockSize = 0;
+    // GeneX dots detected slab by slab, slab depth in slices (0 = whole stack)
+    public int slabDepth = 0;
+    // Threshold histograms count one voxel out of thresholdSampling
+    public int thresholdSampling = 1;
+    
+    // Batch
+    public int nbWorkers = 1;
+    public double memoryBudget = Math.floor(Runtime.getRuntime().maxMemory() / Math.pow(1024, 3));
+    // Images read ahead while others are analyzed
+    public int prefetch = 1;
+    // Folder of memory-mapped intermediate images, empty to keep them in heap
+    public String scratchDir = "";
+    // Peak memory of an image analysis, in number of copies of one channel as float
+    private final int memFactor = 10;
+    
+    // Stages metrics of the analyzed image
+    public StageMetrics metrics = new StageMetrics();
+    
+    // Objects measurements of populations, cached until results are written
+    private final Map<Objects3DIntPopulation, ObjectsMeasure> popMeasures = new IdentityHashMap<>();
+    // Background estimators of opened channels, filled while planes are read
+    private final Map<ImagePlus, BackgroundEstimator> backgrounds = new IdentityHashMap<>();
+    
+    // Parameter sweep, null if off
+    public ParameterSweep sweep = null;
+    // Save objects image of each image
+    public boolean saveOverlays = true;
+    
+    public static final String RESULTS_HEADER = "Image name\tImage vol (µm3)\tImage-ROI vol (µm3)\tVessels vol (µm3)\tGeneX channel bg\tNb GeneX dots in vessels\tGeneX dots vol in vessels (µm3)\t"
+                        + "GeneX dots int in vessels\tGeneX dots bg corr int in vessels\tNb GeneX dots out vessels\tGeneX dots vol out vessels (µm3)\tGeneX dots int out vessels"
+                        + "\tGeneX dots bg corr int out vessels\n";
+    
+    
+    public static final String[] VESSELS_COLUMNS = {"Image name", "Vessel id", "Vol (µm3)", "Centroid x (µm)", "Centroid y (µm)", "Centroid z (µm)", 
+                        "GeneX int", "GeneX mean int"};
+    public static final TableWriter.Type[] VESSELS_TYPES = {TableWriter.Type.STRING, TableWriter.Type.INT, TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE,
+                        TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE};
+    public static final String[] DOTS_COLUMNS = {"Image name", "Dot id", "Location", "Vol (µm3)", "Centroid x (µm)", "Centroid y (µm)", "Centroid z (µm)", 
+                        "Int", "Bg corr int", "Mean int", "Distance to vessel (µm)"};
+    public static final TableWriter.Type[] DOTS_TYPES = {TableWriter.Type.STRING, TableWriter.Type.INT, TableWriter.Type.STRING, TableWriter.Type.DOUBLE,
+                        TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE, 
+                        TableWriter.Type.DOUBLE, TableWriter.Type.DOUBLE};
+    
+    
+    public Tools() {
+        filterEngine = findFilterEngine();
+    }
+    
+    
+    /**
+     * Copy parameters of tools, to analyze an image in its own thread
+     * Filter engine is shared
+     */
+    public Tools(Tools tools) {
+        filterEngine = tools.filterEngine;
+        channelNames = tools.channelNames;
+        cal = tools.cal.copy();
+        pixVol = tools.pixVol;
+        fociThMethod = tools.fociThMethod;
+        minDOGFoci = tools.minDOGFoci;
+        maxDOGFoci = tools.maxDOGFoci;
+        minFociVol = tools.minFociVol;
+        maxFociVol = tools.maxFociVol;
+        vesselThMethod = tools.vesselThMethod;
+        dilVessel = tools.dilVessel;
+        minVesselVol = tools.minVesselVol;
+        maxVesselVol = tools.maxVesselVol;
+        sigmaLOGVessel = tools.sigmaLOGVessel;
+        blockSize = tools.blockSize;
+        slabDepth = tools.slabDepth;
+        thresholdSampling = tools.thresholdSampling;
+        nbWorkers = tools.nbWorkers;
+        memoryBudget = tools.memoryBudget;
+        prefetch = tools.prefetch;
+        scratchDir = tools.scratchDir;
+        sweep = tools.sweep;
+        saveOverlays = tools.saveOverlays;
+        // Peak heap is process wide, it can't be told apart between images read or analyzed at the same time
+        metrics = new StageMetrics(nbWorkers == 1 && prefetch == 0);
+    }
 
     
+    /**
+     * Analysis parameters that change results, as a single line
+     */
+    public String getParams() {
+        return(filterEngine.getClass().getSimpleName() + "\t" + cal.pixelWidth + "\t" + cal.pixelDepth + "\t" + fociThMethod + "\t" + minDOGFoci 
+                + "\t" + maxDOGFoci + "\t" + minFociVol + "\t" + maxFociVol + "\t" + vesselThMethod + "\t" + dilVessel + "\t" + minVesselVol 
+                + "\t" + maxVesselVol + "\t" + sigmaLOGVessel + "\t" + blockSize + "\t" + slabDepth + "\t" + thresholdSampling + "\t" + ((sweep == null) ? "" : sweep.getParams()));
+    }
+    
+    
     /**
      * Display a message in the ImageJ console and status bar
      */
@@ -87,12 +169,6 @@ public class Tools {
      */
     public boolean checkInstalledModules() {
         ClassLoader loader = IJ.getClassLoader();
-        try {
-            loader.loadClass("net.haesleinhuepf.clij2.CLIJ2");
-        } catch (ClassNotFoundException e) {
-            IJ.showMessage("Error", "CLIJ not installed, please install from update site");
-            return false;
-        }
         try {
             loader.loadClass("mcib3d.geom2.Object3DInt");
         } catch (ClassNotFoundException e) {
@@ -103,6 +179,21 @@ public class Tools {
     }
     
     
+    /**
+     * Use CLIJ2 if an OpenCL device is available, CPU filters otherwise
+     */
+    private FilterEngine findFilterEngine() {
+        FilterEngine engine;
+        try {
+            engine = new CLIJ2FilterEngine();
+        } catch (RuntimeException | LinkageError e) {
+            engine = new CPUFilterEngine();
+        }
+        System.out.println("Filters computed with " + engine.getName());
+        return(engine);
+    }
+    
+    
     /**
      * Find images extension
      */
@@ -252,7 +343,7 @@ public class Tools {
     public String[] dialog(String[] chs) { 
         GenericDialogPlus gd = new GenericDialogPlus("Parameters");
         gd.setInsets​(0, 100, 0);
-        gd.addImage(icon);
+        gd.addImage(new ImageIcon(this.getClass().getResource("/Orion_icon.png")));
         
         gd.addMessage("Channels", Font.getFont("Monospace"), Color.blue);
         int index = 0;
@@ -275,6 +366,25 @@ public class Tools {
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY pixel size (µm): ", cal.pixelWidth);
         gd.addNumericField("Z pixel size (µm): ", cal.pixelDepth);
+        
+        gd.addMessage("Batch processing", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Images analyzed in parallel: ", nbWorkers);
+        gd.addNumericField("Memory budget (GB): ", memoryBudget);
+        gd.addNumericField("Images read ahead: ", prefetch);
+        gd.addDirectoryField("Scratch folder (empty = memory): ", scratchDir);
+        gd.addNumericField("Block size (pixels, 0 = no tiling): ", blockSize);
+        gd.addNumericField("Dots slab depth (slices, 0 = whole stack): ", slabDepth);
+        gd.addNumericField("Threshold sampling (1 voxel out of): ", thresholdSampling);
+        gd.addCheckbox("Save objects images", saveOverlays);
+        
+        gd.addMessage("Parameter sweep (comma separated values)", Font.getFont("Monospace"), Color.blue);
+        gd.addCheckbox("Sweep parameters", false);
+        gd.addStringField("Foci threshold methods: ", fociThMethod, 30);
+        gd.addStringField("Min foci volumes (µm3): ", Double.toString(minFociVol), 30);
+        gd.addStringField("Max foci volumes (µm3): ", Double.toString(maxFociVol), 30);
+        gd.addStringField("Vessel threshold methods: ", vesselThMethod, 30);
+        gd.addStringField("Min vessel volumes (µm3): ", Double.toString(minVesselVol), 30);
+        gd.addStringField("Vessel dilations (µm): ", Integer.toString(dilVessel), 30);
         gd.addHelp(urlHelp);
         gd.showDialog();
         
@@ -295,6 +405,21 @@ public class Tools {
         cal.pixelDepth = gd.getNextNumber();
         pixVol = cal.pixelWidth*cal.pixelWidth*cal.pixelDepth;
         
+        nbWorkers = Math.max(1, (int) gd.getNextNumber());
+        memoryBudget = gd.getNextNumber();
+        prefetch = Math.max(0, (int) gd.getNextNumber());
+        scratchDir = gd.getNextString().trim();
+        blockSize = Math.max(0, (int) gd.getNextNumber());
+        slabDepth = Math.max(0, (int) gd.getNextNumber());
+        thresholdSampling = Math.max(1, (int) gd.getNextNumber());
+        saveOverlays = gd.getNextBoolean();
+        
+        boolean doSweep = gd.getNextBoolean();
+        String[] sweepValues = new String[6];
+        for (int n = 0; n < sweepValues.length; n++)
+            sweepValues[n] = gd.getNextString();
+        sweep = doSweep ? new ParameterSweep(sweepValues[0], sweepValues[1], sweepValues[2], sweepValues[3], sweepValues[4], sweepValues[5], maxVesselVol) : null;
+        
         if (gd.wasCanceled())
             chChoices = null; 
         
@@ -302,10 +427,141 @@ public class Tools {
     }
     
     
+    /**
+     * Set parameters from properties instead of dialog box, missing keys keep their current value
+     * Channels are given by name with keys channel.Vessels and channel.GeneX
+     * Return chosen channels
+     */
+    public String[] loadParams(Properties params, String[] chs) {
+        String[] chChoices = new String[channelNames.length];
+        for (int n = 0; n < chChoices.length; n++) {
+            chChoices[n] = params.getProperty("channel." + channelNames[n], chs[Math.min(n, chs.length-1)]);
+            if (!Arrays.asList(chs).contains(chChoices[n]))
+                throw new IllegalArgumentException("Unknown " + channelNames[n] + " channel " + chChoices[n] + ", image channels are " + Arrays.toString(chs));
+        }
+        
+        fociThMethod = params.getProperty("fociThMethod", fociThMethod);
+        minFociVol = Double.parseDouble(params.getProperty("minFociVol", Double.toString(minFociVol)));
+        maxFociVol = Double.parseDouble(params.getProperty("maxFociVol", Double.toString(maxFociVol)));
+        vesselThMethod = params.getProperty("vesselThMethod", vesselThMethod);
+        minVesselVol = Double.parseDouble(params.getProperty("minVesselVol", Double.toString(minVesselVol)));
+        maxVesselVol = Double.parseDouble(params.getProperty("maxVesselVol", Double.toString(maxVesselVol)));
+        dilVessel = Integer.parseInt(params.getProperty("dilVessel", Integer.toString(dilVessel)));
+        
+        cal.pixelWidth = cal.pixelHeight = Double.parseDouble(params.getProperty("pixelWidth", Double.toString(cal.pixelWidth)));
+        cal.pixelDepth = Double.parseDouble(params.getProperty("pixelDepth", Double.toString(cal.pixelDepth)));
+        pixVol = cal.pixelWidth*cal.pixelWidth*cal.pixelDepth;
+        
+        nbWorkers = Math.max(1, Integer.parseInt(params.getProperty("workers", Integer.toString(nbWorkers))));
+        memoryBudget = Double.parseDouble(params.getProperty("memoryBudget", Double.toString(memoryBudget)));
+        prefetch = Math.max(0, Integer.parseInt(params.getProperty("prefetch", Integer.toString(prefetch))));
+        scratchDir = params.getProperty("scratchDir", scratchDir).trim();
+        blockSize = Math.max(0, Integer.parseInt(params.getProperty("blockSize", Integer.toString(blockSize))));
+        slabDepth = Math.max(0, Integer.parseInt(params.getProperty("slabDepth", Integer.toString(slabDepth))));
+        thresholdSampling = Math.max(1, Integer.parseInt(params.getProperty("thresholdSampling", Integer.toString(thresholdSampling))));
+        saveOverlays = Boolean.parseBoolean(params.getProperty("overlays", Boolean.toString(saveOverlays)));
+        
+        sweep = Boolean.parseBoolean(params.getProperty("sweep", "false")) ? new ParameterSweep(
+                params.getProperty("sweep.fociThMethods", fociThMethod), params.getProperty("sweep.minFociVols", Double.toString(minFociVol)),
+                params.getProperty("sweep.maxFociVols", Double.toString(maxFociVol)), params.getProperty("sweep.vesselThMethods", vesselThMethod),
+                params.getProperty("sweep.minVesselVols", Double.toString(minVesselVol)), params.getProperty("sweep.dilVessels", Integer.toString(dilVessel)), 
+                maxVesselVol) : null;
+        return(chChoices);
+    }
+    
+    
+    /**
+     * Current parameters and chosen channels as properties, readable by loadParams
+     */
+    public Properties saveParams(String[] chChoices) {
+        Properties params = new Properties();
+        for (int n = 0; n < channelNames.length; n++)
+            params.setProperty("channel." + channelNames[n], chChoices[n]);
+        params.setProperty("fociThMethod", fociThMethod);
+        params.setProperty("minFociVol", Double.toString(minFociVol));
+        params.setProperty("maxFociVol", Double.toString(maxFociVol));
+        params.setProperty("vesselThMethod", vesselThMethod);
+        params.setProperty("minVesselVol", Double.toString(minVesselVol));
+        params.setProperty("maxVesselVol", Double.toString(maxVesselVol));
+        params.setProperty("dilVessel", Integer.toString(dilVessel));
+        params.setProperty("pixelWidth", Double.toString(cal.pixelWidth));
+        params.setProperty("pixelDepth", Double.toString(cal.pixelDepth));
+        params.setProperty("workers", Integer.toString(nbWorkers));
+        params.setProperty("memoryBudget", Double.toString(memoryBudget));
+        params.setProperty("prefetch", Integer.toString(prefetch));
+        params.setProperty("scratchDir", scratchDir);
+        params.setProperty("blockSize", Integer.toString(blockSize));
+        params.setProperty("slabDepth", Integer.toString(slabDepth));
+        params.setProperty("thresholdSampling", Integer.toString(thresholdSampling));
+        params.setProperty("overlays", Boolean.toString(saveOverlays));
+        params.setProperty("sweep", Boolean.toString(sweep != null));
+        if (sweep != null)
+            sweep.saveParams(params);
+        return(params);
+    }
+    
+    
+    /**
+     * Estimate peak memory (in MB) needed to analyze the image currently set in reader
+     */
+    public int estimateMemory(ImageProcessorReader reader) {
+        long channelBytes = (long) reader.getSizeX() * reader.getSizeY() * reader.getSizeZ() * Float.BYTES;
+        return((int) Math.ceil(channelBytes * memFactor / (1024.0 * 1024.0)));
+    }
+    
+    
+    /**
+     * Open channels of the image currently set in reader
+     * Each plane of the requested channels is decoded only once, a channel requested twice gives two images
+     * of the same stack
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus[] openChannels(ImageProcessorReader reader, int[] chs) throws FormatException, IOException {
+        StageMetrics.Stage stage = metrics.start("open");
+        long start = System.nanoTime();
+        int rgbChs = reader.isRGB() ? reader.getRGBChannelCount() : 1;
+        long planeBytes = (long) reader.getSizeX() * reader.getSizeY() * rgbChs * FormatTools.getBytesPerPixel(reader.getPixelType());
+        long bytesRead = 0;
+        
+        ImagePlus[] imgs = new ImagePlus[chs.length];
+        for (int c = 0; c < chs.length; c++) {
+            // Same channel asked twice: share the already decoded planes, images of channels are only read
+            // and ImageJ flushes a stack once no image shows it anymore
+            int prev = ArrayUtils.indexOf(chs, chs[c]);
+            if (prev < c) {
+                imgs[c] = new ImagePlus(imgs[prev].getTitle(), imgs[prev].getStack());
+                imgs[c].setCalibration(cal);
+                backgrounds.put(imgs[c], backgrounds.get(imgs[prev]));
+                continue;
+            }
+            ImageStack stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+            BackgroundEstimator background = new BackgroundEstimator(reader.getSizeX(), reader.getSizeY());
+            for (int z = 0; z < reader.getSizeZ(); z++) {
+                int index = reader.getIndex(z, chs[c] / rgbChs, 0);
+                ImageProcessor ip = reader.openProcessors(index)[chs[c] % rgbChs];
+                background.add(ip);
+                stack.addSlice(ip);
+                bytesRead += planeBytes;
+            }
+            imgs[c] = new ImagePlus(FilenameUtils.getBaseName(reader.getCurrentFile()) + "-C" + chs[c], stack);
+            imgs[c].setCalibration(cal);
+            backgrounds.put(imgs[c], background);
+        }
+        
+        double decodeTime = (System.nanoTime() - start) / 1e6;
+        System.out.println("Read " + bytesRead/(1024*1024) + " MB in " + decodeTime + " ms");
+        stage.stop();
+        return(imgs);
+    }
+    
+    
     /**
      * Flush and close an image
      */
     public void flushCloseImg(ImagePlus img) {
+        if (img.getStack() instanceof ScratchStack)
+            ((ScratchStack) img.getStack()).close();
         img.flush();
         img.close();
     }
@@ -314,257 +570,431 @@ public class Tools {
     /**
      * Find population of vessels
      */
-    public Objects3DIntPopulation findVessels(ImagePlus imgVessel, ArrayList<Roi> rois) {
+    public Objects3DIntPopulation findVessels(ImagePlus imgVessel, RoiMask roiMask) {
         // Detection
-        ImagePlus imgLOG = new Duplicator().run(imgVessel);
-        IJ.run(imgLOG, "Laplacian of Gaussian", "sigma=20 scale_normalised negate stack");
-        ImagePlus imgBin = threshold(imgLOG, vesselThMethod);
-        imgBin.setCalibration(cal);
-        
-        if (!rois.isEmpty()) {
-            fillImg(imgBin, rois);
-        } 
-        Objects3DIntPopulation vesselsPop = getPopFromImage(imgBin);
-        System.out.println("Nb vessels detected:"+vesselsPop.getNbObjects());
+        ImagePlus imgLOG = filterVessels(imgVessel);
+        StageMetrics.Stage stage = metrics.start("threshold");
+        float th = histogram(imgLOG.getStack()).thresholdValue(vesselThMethod);
+        stage.stop();
+        RunLabeller labeller = label(imgLOG.getStack(), th, roiMask);
+        flushCloseImg(imgLOG);
         
         // Size filtering
-        popFilterSize(vesselsPop, minVesselVol, maxVesselVol);
+        Objects3DIntPopulation vesselsPop = getPopFromLabeller(labeller, null, minVesselVol, maxVesselVol);
         System.out.println("Nb vessels remaining after size filtering: "+ vesselsPop.getNbObjects());
-        
-        flushCloseImg(imgLOG);
-        flushCloseImg(imgBin);
         return(vesselsPop);
     }
     
     
     /**
-     * Threshold using CLIJ2
+     * Filter vessels channel with LoG, computed slice by slice
+     * If tiling is on, slices are filtered one at a time and written to a scratch file, they are not split
+     * into XY blocks: the recursive Gaussian spreads border effects well beyond any halo, blocks would not
+     * give the LoG of the whole image
+     */
+    public ImagePlus filterVessels(ImagePlus imgVessel) {
+        StageMetrics.Stage stage = metrics.start("LoG");
+        ImagePlus imgLOG = (blockSize > 0) 
+                ? LaplacianOfGaussian.filter(imgVessel, sigmaLOGVessel, 0, createWorkStack(imgVessel, 32)) 
+                : LOG(imgVessel, sigmaLOGVessel);
+        stage.stop();
+        return(imgLOG);
+    }
+    
+    
+    /**
+     * Scale normalised, negated Laplacian of Gaussian, slice by slice
+     * Recursive Gaussian, cost does not depend on sigma
+     * Result is written in a scratch file if a scratch folder is set
+     */
+    public ImagePlus LOG(ImagePlus img, double sigma) {
+        return(LaplacianOfGaussian.filter(img, sigma, 0, createScratch(img, 32)));
+    }
+    
+    
+    /**
+     * Return an empty scratch stack with dimensions of img, null if no scratch folder is set or it can't be used
+     */
+    public ScratchStack createScratch(ImagePlus img, int bitDepth) {
+        if (scratchDir.isEmpty())
+            return(null);
+        try {
+            return(ScratchStack.create(img.getWidth(), img.getHeight(), img.getNSlices(), bitDepth, scratchDir));
+        } catch (IOException ex) {
+            IJ.log("Can't create scratch file in " + scratchDir + ", intermediate image kept in memory: " + ex.getMessage());
+            return(null);
+        }
+    }
+    
+    
+    /**
+     * Return an empty stack with dimensions of img in a scratch file, in the system temporary folder
+     * if no scratch folder is set, for images that must not be kept in memory whatever the settings
+     * The stack is created in memory if the scratch file can't be created
+     */
+    public ImageStack createWorkStack(ImagePlus img, int bitDepth) {
+        String dir = scratchDir.isEmpty() ? System.getProperty("java.io.tmpdir") : scratchDir;
+        try {
+            return(ScratchStack.create(img.getWidth(), img.getHeight(), img.getNSlices(), bitDepth, dir));
+        } catch (IOException ex) {
+            IJ.log("Can't create scratch file in " + dir + ", intermediate image kept in memory: " + ex.getMessage());
+            return(ImageStack.create(img.getWidth(), img.getHeight(), img.getNSlices(), bitDepth));
+        }
+    }
+    
+    
+    /**
+     * Threshold histogram of stack, read plane by plane, with one voxel out of thresholdSampling counted
      */
-    public ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCL);
-        clij2.release(imgCLBin);
-        return(imgBin);
+    public StackHistogram histogram(ImageStack stack) {
+        return(new StackHistogram(stack, thresholdSampling));
     }
     
         
     /**
-     * Fill ROIs in black in image
+     * Threshold stack at th, clear ROIs and label components one plane at a time
+     * Voxels >= th are foreground, no binary stack is built
      */
-    private ImagePlus fillImg(ImagePlus img, ArrayList<Roi> rois) {
-        img.getProcessor().setColor(Color.BLACK);
-        for (int s = 1; s <= img.getNSlices(); s++) {
-            img.setSlice(s);
-            for (Roi r : rois) {
-                img.setRoi(r);
-                img.getProcessor().fill(img.getRoi());
-            }
+    public RunLabeller label(ImageStack stack, float th, RoiMask roiMask) {
+        StageMetrics.Stage stage = metrics.start("labelling");
+        int width = stack.getWidth(), height = stack.getHeight();
+        RunLabeller labeller = new RunLabeller(width, height);
+        byte[] bin = new byte[width*height];
+        ImageProcessor ipBin = new ByteProcessor(width, height, bin);
+        for (int z = 1; z <= stack.getSize(); z++) {
+            ImageProcessor ip = stack.getProcessor(z);
+            for (int i = 0; i < bin.length; i++)
+                bin[i] = (byte) ((ip.getf(i) >= th) ? 1 : 0);
+            roiMask.clear(bin);
+            labeller.addSlice(ipBin);
         }
-        img.deleteRoi();
-        return(img);
+        labeller.finish();
+        stage.stop();
+        return(labeller);
+    }
+    
+    
+    /**
+     * Fill ROIs in black in image
+     */
+    public ImagePlus fillImg(ImagePlus img, RoiMask roiMask) {
+        return(roiMask.clear(img));
     } 
     
     
     /**
-     * Return population of 3D objects population from binary image
+     * Return population of components of labeller with min <= volume <= max
+     * Objects are measured with intensities of imgInt if not null
      */
-    private Objects3DIntPopulation getPopFromImage(ImagePlus img) {
-        ImageLabeller labeller = new ImageLabeller();
-        ImageInt labels = labeller.getLabels(ImageHandler.wrap(img));
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
+    public Objects3DIntPopulation getPopFromLabeller(RunLabeller labeller, ImagePlus imgInt, double min, double max) {
+        DotStore dots = getDotsFromLabeller(labeller, imgInt, min, max);
+        StageMetrics.Stage stage = metrics.start("filtering");
+        Objects3DIntPopulation pop = dots.toPopulation();
+        popMeasures.put(pop, dots.getMeasure());
+        stage.stop();
         return pop;
     } 
     
     
     /**
-     * Remove objects in population with size < min and size > max
+     * Return dots of components of labeller with min <= volume <= max
+     * Dots are measured with intensities of imgInt if not null
      */
-    public void popFilterSize(Objects3DIntPopulation pop, double min, double max) {
-        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
-        pop.resetLabels();
+    public DotStore getDotsFromLabeller(RunLabeller labeller, ImagePlus imgInt, double min, double max) {
+        StageMetrics.Stage stage = metrics.start("filtering");
+        labeller.filterSize(min/pixVol, max/pixVol);
+        DotStore dots = labeller.getDots(cal, imgInt, new ObjectsMeasure(imgInt != null));
+        stage.stop();
+        System.out.println(labeller.getNbComponents() + " components labelled (" + labeller.getRunsBytes()/1024 + " KB of runs), " 
+                + dots.getNbObjects() + " kept after size filtering");
+        return(dots);
     }
-
+    
     
     /**
-     * Find population of geneX foci
+     * Return cached measurements of population, measure it if needed
+     * img gives voxels intensity, can be null if only volumes are needed
      */
-    public Objects3DIntPopulation findGenes(ImagePlus imgGene, ArrayList<Roi> rois) {
+    public ObjectsMeasure getMeasure(Objects3DIntPopulation pop, ImagePlus img) {
+        ObjectsMeasure measure = popMeasures.get(pop);
+        if (measure == null || (img != null && !measure.hasIntensity())) {
+            measure = ObjectsMeasure.fromPopulation(pop, img);
+            popMeasures.put(pop, measure);
+        }
+        return(measure);
+    }
+    
+    
+    /**
+     * Write stages metrics of the image next to results file and publish them over JMX
+     */
+    public void saveMetrics(String outDirResults, String rootName) throws IOException {
+        metrics.writeCSV(outDirResults + rootName + "_metrics.csv");
+        Metrics.getInstance().add(rootName, metrics);
+    }
+    
+    
+    /**
+     * Forget cached measurements of all populations and background
+     */
+    public void clearMeasures() {
+        popMeasures.clear();
+        backgrounds.clear();
+    }
+    
+    
+    /**
+     * Find geneX foci
+     */
+    public DotStore findGenes(ImagePlus imgGene, RoiMask roiMask) {
+        if (slabDepth > 0 && slabDepth < imgGene.getNSlices())
+            return(findGenesBySlab(imgGene, roiMask));
         // GeneX foci detection
-        ImagePlus imgDup = new Duplicator().run(imgGene);
-        ImagePlus imgDOG = DOG(imgDup, minDOGFoci, maxDOGFoci);
-        ImagePlus imgBin = threshold(imgDOG, fociThMethod);
-        imgBin.setCalibration(cal);
+        ImagePlus imgDOG = filterGenes(imgGene);
+        StageMetrics.Stage stage = metrics.start("threshold");
+        float th = histogram(imgDOG.getStack()).thresholdValue(fociThMethod);
+        stage.stop();
+        RunLabeller labeller = label(imgDOG.getStack(), th, roiMask);
+        flushCloseImg(imgDOG);
         
-        if (!rois.isEmpty()) {
-            fillImg(imgBin, rois);
+        // Size filtering, dots measured with geneX intensities
+        DotStore genes = getDotsFromLabeller(labeller, imgGene, minFociVol, maxFociVol);
+        System.out.println("Nb geneX foci remaining after size filtering: "+ genes.getNbObjects());
+        return(genes);
+    }
+     
+    
+    /**
+     * Find geneX foci slab by slab along Z
+     * DoG is computed on slabs of slabDepth slices with a halo wide enough for its kernels,
+     * only slabs cores are kept, in a scratch file of the scratch folder or of the system temporary folder
+     * Cores are then thresholded with the whole stack histogram and labelled one slice at a time,
+     * dots crossing slabs borders being merged by the labeller, so no binary stack is built
+     */
+    private DotStore findGenesBySlab(ImagePlus imgGene, RoiMask roiMask) {
+        int width = imgGene.getWidth(), height = imgGene.getHeight(), depth = imgGene.getNSlices();
+        int halo = (int) Math.ceil(4*maxDOGFoci);
+        StageMetrics.Stage stage = metrics.start("DoG");
+        ImageStack stackDOG = null;
+        for (int z = 0; z < depth; z += slabDepth) {
+            int z0 = Math.max(0, z-halo), z1 = Math.min(depth, z+slabDepth+halo);
+            ImagePlus imgSlab = new ImagePlus("slab", imgGene.getStack().crop(0, 0, z0, width, height, z1-z0));
+            imgSlab.setCalibration(cal);
+            ImagePlus imgSlabDOG = DOG(imgSlab, minDOGFoci, maxDOGFoci);
+            if (stackDOG == null)
+                stackDOG = createWorkStack(imgGene, imgSlabDOG.getBitDepth());
+            for (int s = z; s < Math.min(depth, z+slabDepth); s++)
+                stackDOG.setPixels(imgSlabDOG.getStack().getPixels(s-z0+1), s+1);
+            imgSlab.flush();
         }
-        Objects3DIntPopulation genesPop = getPopFromImage(imgBin);
-        System.out.println("Nb geneX foci detected:"+genesPop.getNbObjects());
+        stage.stop();
         
-        // Size filtering
-        popFilterSize(genesPop, minFociVol, maxFociVol);
-        System.out.println("Nb geneX foci remaining after size filtering: "+ genesPop.getNbObjects());
+        stage = metrics.start("threshold");
+        float th = histogram(stackDOG).thresholdValue(fociThMethod);
+        stage.stop();
         
-        flushCloseImg(imgDup);
-        flushCloseImg(imgDOG);
-        flushCloseImg(imgBin);
-        return(genesPop);
+        RunLabeller labeller = label(stackDOG, th, roiMask);
+        if (stackDOG instanceof ScratchStack)
+            ((ScratchStack) stackDOG).close();
+        
+        // Size filtering, dots measured with geneX intensities
+        DotStore genes = getDotsFromLabeller(labeller, imgGene, minFociVol, maxFociVol);
+        System.out.println("Nb geneX foci remaining after size filtering: "+ genes.getNbObjects());
+        return(genes);
     }
-     
+    
+    
+    /**
+     * Filter geneX channel with DoG, block by block if tiling is on
+     * DoG kernels are truncated within the halo of 4 x 2nd sigma, so blocks cores are the DoG of the whole image
+     */
+    public ImagePlus filterGenes(ImagePlus imgGene) {
+        int halo = (int) Math.ceil(4*maxDOGFoci);
+        BlockTiler tiler = new BlockTiler(imgGene, blockSize, halo, halo);
+        StageMetrics.Stage stage = metrics.start("DoG");
+        ImagePlus imgDOG;
+        if (tiler.isTiled()) {
+            imgDOG = tiler.filter(imgGene, img -> DOG(img, minDOGFoci, maxDOGFoci), bitDepth -> createWorkStack(imgGene, bitDepth));
+        } else {
+            // Filter engines copy their input, no duplicate is needed
+            imgDOG = DOG(imgGene, minDOGFoci, maxDOGFoci);
+        }
+        stage.stop();
+        return(imgDOG);
+    }
+    
     
     /**
-     * Difference of Gaussians with CLIJ2
+     * Difference of Gaussians with filter engine
      */ 
     public ImagePlus DOG(ImagePlus img, double size1, double size2) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
-        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
-        ImagePlus imgDOG = clij2.pull(imgCLDOG);
-        clij2.release(imgCL);
-        clij2.release(imgCLDOG);
-        return(imgDOG);
+        return(filterEngine.DOG(img, size1, size2));
     }
     
     
     /**
      * Find geneX dots into and out of vessels
+     * Dots voxels are split between in and out populations according to their distance to vessels,
+     * the same distances giving dots distance to vessels
      */
-    public List<Objects3DIntPopulation> findGeneXInOutVessels(Objects3DIntPopulation geneXPop, Objects3DIntPopulation vesselsPop, ImagePlus imgGeneX) {
-        ImageHandler imh = ImageHandler.wrap(imgGeneX).createSameDimensions();
-        geneXPop.drawInImage(imh);
-        ImageHandler imhDup = imh.duplicate();
-        
-        for (Object3DInt vessel: vesselsPop.getObjects3DInt()) {
-            Object3DInt vesselDil = dilateObj(vessel, imgGeneX, dilVessel);
-            vesselDil.drawObject(imh, 0);
-        }
-
-        Objects3DIntPopulation popOut = new Objects3DIntPopulation(imh);
-        
-        ImagePlus imgSub = new ImageCalculator().run("subtract stack create", imhDup.getImagePlus(), imh.getImagePlus());
-        Objects3DIntPopulation popIn = new Objects3DIntPopulation(ImageHandler.wrap(imgSub));
-        
-        imh.closeImagePlus();
-        imhDup.closeImagePlus();
-        return(Arrays.asList(popIn, popOut));  
+    public List<DotStore> findGeneXInOutVessels(DotStore geneX, Objects3DIntPopulation vesselsPop, ImagePlus imgGeneX) {
+        StageMetrics.Stage stage = metrics.start("in/out");
+        DistanceMap.Columns vesselsDist = vesselsDistance(vesselsPop, imgGeneX, Arrays.asList(geneX));
+        List<DotStore> dots = classifyDots(geneX, vesselsDist, dilVessel, imgGeneX);
+        stage.stop();
+        return(dots);
     }
-
+    
     
     /**
-     * Return dilated object restricted to image borders
+     * Split geneX dots voxels between in and out dots, in being closer than dilSize (µm) to vessels
+     * Dots are split run by run, parts keep the label of their dot and are measured while split,
+     * with their distance to vessels
+     * vesselsDist must be computed for geneX voxels, see vesselsDistance
      */
-    public Object3DInt dilateObj(Object3DInt obj, ImagePlus img, double dilSize) {
-        Object3DInt objDil = new Object3DComputation(obj).getObjectDilated((float)(dilSize/cal.pixelWidth), (float)(dilSize/cal.pixelHeight),(float)(dilSize/cal.pixelDepth));
-        
-        // Check if object goes over image borders
-        BoundingBox bbox = objDil.getBoundingBox();
-        BoundingBox imgBbox = new BoundingBox(ImageHandler.wrap(img));
-        int[] box = {imgBbox.xmin, imgBbox.xmax, imgBbox.ymin, imgBbox.ymax, imgBbox.zmin, imgBbox.zmax};
-        if (bbox.xmin < 0 || bbox.xmax > imgBbox.xmax || bbox.ymin < 0 || bbox.ymax > imgBbox.ymax || bbox.zmin < 0 || bbox.zmax > imgBbox.zmax) {
-            Object3DInt objDilInImg = new Object3DInt();
-            for (Object3DPlane p: objDil.getObject3DPlanes()) {
-                for (VoxelInt v: p.getVoxels()) {
-                    if (v.isInsideBoundingBox(box))
-                        objDilInImg.addVoxel(v);
-                }
-            }
-            return(objDilInImg);
-        } else {
-            return(objDil);
-        }
+    public List<DotStore> classifyDots(DotStore geneX, DistanceMap.Columns vesselsDist, double dilSize, ImagePlus imgGeneX) {
+        DotStore[] inOut = geneX.classify(vesselsDist, (float) (dilSize*dilSize), ObjectsMeasure.getProcessors(imgGeneX), imgGeneX.getWidth());
+        return(Arrays.asList(inOut));  
     }
-
-  
+    
+    
+    /**
+     * Return squared distance (µm2) to the nearest vessel, with anisotropic distance map, of the voxels of
+     * all (x, y) columns holding voxels of dots
+     * Vessels are painted one slice at a time, only distances of the dots columns are kept
+     */
+    public DistanceMap.Columns vesselsDistance(Objects3DIntPopulation vesselsPop, ImagePlus img, List<DotStore> dots) {
+        int width = img.getWidth(), height = img.getHeight(), depth = img.getNSlices();
+        BitSet columns = new BitSet(width*height);
+        for (DotStore dot: dots)
+            dot.markColumns(columns, width);
+        return(DistanceMap.squaredEDT(OverlayWriter.layer(vesselsPop, depth), columns.stream().toArray(), width, height, depth, 
+                cal.pixelWidth, cal.pixelHeight, cal.pixelDepth));
+    }
+    
+    
     /**
      * Draw results
      */
-    public void drawResults(ImagePlus imgGeneX, Objects3DIntPopulation vesselsPop, Objects3DIntPopulation genesXIn, Objects3DIntPopulation genesXOut,
+    public void drawResults(ImagePlus imgGeneX, Objects3DIntPopulation vesselsPop, DotStore genesXIn, DotStore genesXOut,
             String outDirResults, String rootName) {
-        ImageHandler imgVessels = ImageHandler.wrap(imgGeneX).createSameDimensions();
-        ImageHandler imgGeneXIn = ImageHandler.wrap(imgGeneX).createSameDimensions();
-        ImageHandler imgGeneXOut = ImageHandler.wrap(imgGeneX).createSameDimensions();
-        
-        // Draw vessels pop in blue, geneXIn pop in red and geneXOut pop in green
-        for (Object3DInt vessel: vesselsPop.getObjects3DInt()) 
-                vessel.drawObject(imgVessels, 255);
-        for (Object3DInt ob : genesXIn.getObjects3DInt()) 
-                ob.drawObject(imgGeneXIn, 255);
-        for (Object3DInt ob : genesXOut.getObjects3DInt()) 
-                ob.drawObject(imgGeneXOut, 255);
-        ImagePlus[] imgColors = {imgGeneXIn.getImagePlus(), imgGeneXOut.getImagePlus(), imgVessels.getImagePlus()};
-        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
-        imgObjects.setCalibration(cal);
-        IJ.run(imgObjects, "Enhance Contrast", "saturated=0.35");
-
-        // Save resulting image
-        FileSaver ImgObjectsFile = new FileSaver(imgObjects);
-        ImgObjectsFile.saveAsTiff(outDirResults + rootName + ".tif");
-        
-        imgVessels.closeImagePlus();
-        imgGeneXIn.closeImagePlus();
-        imgGeneXOut.closeImagePlus();
+        StageMetrics.Stage stage = metrics.start("drawing");
+        // Draw vessels pop in blue, geneXIn dots in red and geneXOut dots in green
+        List<OverlayWriter.Layer> layers = new ArrayList<>();
+        layers.add(OverlayWriter.layer(vesselsPop, imgGeneX.getNSlices()));
+        layers.add(genesXIn);
+        layers.add(genesXOut);
+        int[] colors = {0x0000ff, 0xff0000, 0x00ff00};
+        try {
+            OverlayWriter.write(outDirResults + rootName + ".tif", imgGeneX.getWidth(), imgGeneX.getHeight(), imgGeneX.getNSlices(), cal, layers, colors);
+        } catch (IOException ex) {
+            IJ.log("Can't save objects image of " + rootName + ": " + ex.getMessage());
+        }
+        stage.stop();
     }
     
     
     /**
-     * Write results
+     * Return results row of an image
      */
-    public void writeResults(BufferedWriter results, Objects3DIntPopulation vesselsPop, Objects3DIntPopulation genesXIn, Objects3DIntPopulation genesXOut, 
-            ImagePlus imgGeneX, ArrayList<Roi> rois, String imgName) throws IOException {
-        
+    public String formatResults(Objects3DIntPopulation vesselsPop, DotStore genesXIn, DotStore genesXOut, 
+            ImagePlus imgGeneX, RoiMask roiMask, String imgName) {
+        StageMetrics.Stage stage = metrics.start("writing");
         double imgVol = imgGeneX.getWidth() * imgGeneX.getHeight() * imgGeneX.getNSlices() * pixVol;
-        double roisVol = getRoisVolume(rois, imgGeneX);
+        double roisVol = getRoisVolume(roiMask, imgGeneX);
         double vesselsVol = findPopVolume(vesselsPop);
         
         double bg = findBackground(imgGeneX);
-        double genesXInVol = findPopVolume(genesXIn);
-        double genesXInInt = findPopIntensity(genesXIn, imgGeneX);
+        double genesXInVol = findDotsVolume(genesXIn);
+        double genesXInInt = findDotsIntensity(genesXIn);
         double genesXInIntBgCor = genesXInInt - bg*genesXInVol/pixVol;
-        double genesXOutVol = findPopVolume(genesXOut);
-        double genesXOutInt = findPopIntensity(genesXOut, imgGeneX);
+        double genesXOutVol = findDotsVolume(genesXOut);
+        double genesXOutInt = findDotsIntensity(genesXOut);
         double genesXOutIntBgCor = genesXOutInt - bg*genesXOutVol/pixVol;
         
-        results.write(imgName+"\t"+imgVol+"\t"+(imgVol-roisVol)+"\t"+vesselsVol+"\t"+bg+"\t"+genesXIn.getNbObjects()+"\t"+genesXInVol+"\t"+genesXInInt+"\t"+genesXInIntBgCor+"\t"+
-                      genesXOut.getNbObjects()+"\t"+genesXOutVol+"\t"+genesXOutInt+"\t"+genesXOutIntBgCor+"\n");
-        results.flush();
+        String row = imgName+"\t"+imgVol+"\t"+(imgVol-roisVol)+"\t"+vesselsVol+"\t"+bg+"\t"+genesXIn.getNbObjects()+"\t"+genesXInVol+"\t"+genesXInInt+"\t"+genesXInIntBgCor+"\t"+
+                genesXOut.getNbObjects()+"\t"+genesXOutVol+"\t"+genesXOutInt+"\t"+genesXOutIntBgCor+"\n";
+        stage.stop();
+        return(row);
     }
     
     
     /**
-     * Compute ROIs total volume
+     * Write vessels and geneX dots tables of an image, one row per object
+     * Values come from the measurements giving the results row, so that summing
+     * dots rows by location gives the image volumes and intensities
      */
-    public double getRoisVolume(ArrayList<Roi> rois, ImagePlus img) {
-        double roisVol = 0;
-        for(Roi roi: rois) {
-            PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
-            poly.setLocation(0, 0);
-            
-            img.resetRoi();
-            img.setRoi(poly);
-
-            ResultsTable rt = new ResultsTable();
-            Analyzer analyzer = new Analyzer(img, Analyzer.AREA, rt);
-            analyzer.measure();
-            roisVol += rt.getValue("Area", 0);
+    public void saveObjects(Objects3DIntPopulation vesselsPop, DotStore genesXIn, DotStore genesXOut, 
+            ImagePlus imgGeneX, String outDirResults, String rootName) throws IOException {
+        StageMetrics.Stage stage = metrics.start("writing");
+        double bg = findBackground(imgGeneX);
+        
+        ObjectsMeasure vessels = getMeasure(vesselsPop, imgGeneX);
+        try (TableWriter table = new TableWriter(outDirResults + rootName + "_vessels.csv", VESSELS_COLUMNS, VESSELS_TYPES)) {
+            for (Object3DInt vessel: vesselsPop.getObjects3DInt()) {
+                int label = (int) vessel.getLabel();
+                table.add(rootName).add(label).add(vessels.getVolume(label, pixVol));
+                addCentroid(table, vessels, label);
+                table.add(vessels.getSumIntensity(label)).add(vessels.getMeanIntensity(label));
+                table.endRow();
+            }
         }
-
-        return(roisVol * img.getNSlices() * cal.pixelDepth);
+        
+        // A dot split by vessels border has an in row and an out row
+        ObjectsMeasure in = genesXIn.getMeasure();
+        ObjectsMeasure out = genesXOut.getMeasure();
+        try (TableWriter table = new TableWriter(outDirResults + rootName + "_dots.csv", DOTS_COLUMNS, DOTS_TYPES)) {
+            int maxLabel = Math.max(in.getMaxLabel(), out.getMaxLabel());
+            for (int label = 1; label <= maxLabel; label++) {
+                for (ObjectsMeasure measure: new ObjectsMeasure[]{in, out}) {
+                    if (measure.getCount(label) == 0)
+                        continue;
+                    double vol = measure.getVolume(label, pixVol);
+                    double intensity = measure.getSumIntensity(label);
+                    table.add(rootName).add(label).add((measure == in) ? "in" : "out").add(vol);
+                    addCentroid(table, measure, label);
+                    table.add(intensity).add(intensity - bg*measure.getCount(label)).add(measure.getMeanIntensity(label));
+                    table.add(measure.getNearestDistance(label));
+                    table.endRow();
+                }
+            }
+        }
+        stage.stop();
+    }
+    
+    
+    /**
+     * Add centroid of object label in µm
+     */
+    private void addCentroid(TableWriter table, ObjectsMeasure measure, int label) throws IOException {
+        double[] centroid = measure.getCentroid(label);
+        table.add(centroid[0]*cal.pixelWidth).add(centroid[1]*cal.pixelHeight).add(centroid[2]*cal.pixelDepth);
+    }
+    
+    
+    /**
+     * Compute ROIs total volume, overlapping ROIs counted once
+     */
+    public double getRoisVolume(RoiMask roiMask, ImagePlus img) {
+        return(roiMask.getVolume(cal, img.getNSlices()));
     }
     
     
     /**
      * Find image background intensity:
-     * Perform z-projection over min intensity + read median intensity
+     * Median intensity of the min z-projection, updated while image was opened
+     * Images not opened with openChannels are scanned plane by plane
      */
     public double findBackground(ImagePlus img) {
-      ImagePlus imgProj = doZProjection(img, ZProjector.MIN_METHOD);
-      double bg = imgProj.getProcessor().getStatistics().median;
+      BackgroundEstimator background = backgrounds.get(img);
+      if (background == null) {
+          background = new BackgroundEstimator(img.getWidth(), img.getHeight());
+          for (int z = 1; z <= img.getNSlices(); z++)
+              background.add(img.getStack().getProcessor(z));
+          backgrounds.put(img, background);
+      }
+      double bg = background.getMedian();
       System.out.println("Background (median of the min projection) = " + bg);
-      
-      flushCloseImg(imgProj);
       return(bg);
     }
     
@@ -587,22 +1017,23 @@ public class Tools {
      * Find total volume of objects in population
      */
     public double findPopVolume(Objects3DIntPopulation pop) {
-        double totalVol = 0;
-        for(Object3DInt obj: pop.getObjects3DInt())
-            totalVol += new MeasureVolume(obj).getVolumeUnit();
-        return(totalVol);
+        return(getMeasure(pop, null).getTotalCount() * pixVol);
+    }
+    
+    
+    /**
+     * Find total volume of dots
+     */
+    public double findDotsVolume(DotStore dots) {
+        return(dots.getMeasure().getTotalCount() * pixVol);
     }
     
     
     /**
-     * Find total intensity of objects in population
+     * Find total intensity of dots, measured when they were labelled or classified
      */
-    public double findPopIntensity(Objects3DIntPopulation pop, ImagePlus img) {
-        ImageHandler imh = ImageHandler.wrap(img);
-        double totalInt = 0;
-        for(Object3DInt obj: pop.getObjects3DInt())
-            totalInt +=  new MeasureIntensity(obj, imh).getValueMeasurement(MeasureIntensity.INTENSITY_SUM);
-        return(totalInt);
+    public double findDotsIntensity(DotStore dots) {
+        return(dots.getMeasure().getTotalIntensity());
     }
  
 }
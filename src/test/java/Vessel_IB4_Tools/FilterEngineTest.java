@@ -0,0 +1,119 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.GaussianBlur3D;
+import ij.process.FloatProcessor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assume;
+import org.junit.Test;
+
+
+/**
+ * CPU filter engine against CLIJ2 when an OpenCL device is present, and against ImageJ 3D Gaussian blurs
+ * Tolerances: DoG values within 0.5% of the DoG range (kernels are truncated differently),
+ * Triangle masks with a Jaccard index of at least 0.98
+ * @author ORION-CIRB
+ */
+public class FilterEngineTest {
+
+    private static final double MAX_RELATIVE_DIFF = 0.005;
+    private static final double MIN_JACCARD = 0.98;
+    private static final double[][] SIGMAS = {{1, 2}, {2, 4}};
+
+
+    private static ImagePlus floatDots() {
+        ImagePlus img = TestStacks.dots(128, 112, 24, 150, 3);
+        ImagePlus imgFloat = new ImagePlus("dots", img.getStack().convertToFloat());
+        imgFloat.setCalibration(img.getCalibration());
+        return(imgFloat);
+    }
+
+
+    /**
+     * DoG with ImageJ 3D Gaussian blurs
+     */
+    private static ImagePlus imageJDOG(ImagePlus img, double size1, double size2) {
+        ImagePlus gauss1 = img.duplicate();
+        ImagePlus gauss2 = img.duplicate();
+        GaussianBlur3D.blur(gauss1, size1, size1, size1);
+        GaussianBlur3D.blur(gauss2, size2, size2, size2);
+        ImageStack stack = new ImageStack(img.getWidth(), img.getHeight());
+        for (int z = 1; z <= img.getNSlices(); z++) {
+            float[] pixels1 = (float[]) gauss1.getStack().getPixels(z);
+            float[] pixels2 = (float[]) gauss2.getStack().getPixels(z);
+            float[] dog = new float[pixels1.length];
+            for (int i = 0; i < dog.length; i++)
+                dog[i] = pixels1[i] - pixels2[i];
+            stack.addSlice(new FloatProcessor(img.getWidth(), img.getHeight(), dog));
+        }
+        return(new ImagePlus("DoG", stack));
+    }
+
+
+    private static ImagePlus mask(ImagePlus img) {
+        return(CPUFilterEngine.binarize(img, new StackHistogram(img.getStack()).thresholdValue("Triangle")));
+    }
+
+
+    private static void assertSameDOG(String label, ImagePlus expected, ImagePlus actual) {
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, maxDiff = 0;
+        for (int z = 1; z <= expected.getNSlices(); z++) {
+            float[] e = (float[]) expected.getStack().getProcessor(z).convertToFloat().getPixels();
+            float[] a = (float[]) actual.getStack().getProcessor(z).convertToFloat().getPixels();
+            for (int i = 0; i < e.length; i++) {
+                min = Math.min(min, e[i]);
+                max = Math.max(max, e[i]);
+                maxDiff = Math.max(maxDiff, Math.abs(e[i] - a[i]));
+            }
+        }
+        assertTrue(label + " DoG max difference " + maxDiff + " for range " + (max - min), maxDiff <= MAX_RELATIVE_DIFF * (max - min));
+
+        ImagePlus maskE = mask(expected), maskA = mask(actual);
+        long inter = 0, union = 0;
+        for (int z = 1; z <= maskE.getNSlices(); z++) {
+            byte[] e = (byte[]) maskE.getStack().getPixels(z);
+            byte[] a = (byte[]) maskA.getStack().getPixels(z);
+            for (int i = 0; i < e.length; i++) {
+                if (e[i] != 0 && a[i] != 0) inter++;
+                if (e[i] != 0 || a[i] != 0) union++;
+            }
+        }
+        assertTrue(label + " empty mask", union > 0);
+        double jaccard = (double) inter / union;
+        assertTrue(label + " mask Jaccard " + jaccard, jaccard >= MIN_JACCARD);
+    }
+
+
+    @Test
+    public void cpuDOGMatchesImageJ() {
+        ImagePlus img = floatDots();
+        for (double[] s: SIGMAS)
+            assertSameDOG("sigmas " + s[0] + "/" + s[1], imageJDOG(img, s[0], s[1]), new CPUFilterEngine().DOG(img, s[0], s[1]));
+    }
+
+
+    @Test
+    public void cpuDOGMatchesCLIJ2() {
+        FilterEngine clij2 = null;
+        try {
+            clij2 = new CLIJ2FilterEngine();
+        } catch (RuntimeException | LinkageError ex) {
+            Assume.assumeNoException("No OpenCL device", ex);
+        }
+        ImagePlus img = floatDots();
+        for (double[] s: SIGMAS)
+            assertSameDOG("sigmas " + s[0] + "/" + s[1], clij2.DOG(img, s[0], s[1]), new CPUFilterEngine().DOG(img, s[0], s[1]));
+    }
+
+
+    @Test
+    public void cpuDOGKeepsBitDepth() {
+        ImagePlus img = TestStacks.dots(64, 48, 8, 20, 4);
+        ImagePlus imgDOG = new CPUFilterEngine().DOG(img, 1, 2);
+        assertEquals(16, imgDOG.getBitDepth());
+        assertEquals(img.getNSlices(), imgDOG.getNSlices());
+    }
+}
@@ -0,0 +1,143 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+
+/**
+ * Run labelling against a voxel by voxel flood fill with 26-connectivity
+ * Both number components in raster order of their first voxel, so labels must match exactly
+ * @author ORION-CIRB
+ */
+public class RunLabellerTest {
+
+    /**
+     * Binary stack with foreground voxels {x, y, z}
+     */
+    private static ImagePlus stack(int width, int height, int depth, int[]... voxels) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++)
+            stack.addSlice(new ByteProcessor(width, height));
+        for (int[] v: voxels)
+            stack.getProcessor(v[2]+1).set(v[0], v[1], 255);
+        return(new ImagePlus("bin", stack));
+    }
+
+
+    private static ImagePlus randomStack(int width, int height, int depth, double density, long seed) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            byte[] pixels = new byte[width*height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (byte) ((random.nextDouble() < density) ? 255 : 0);
+            stack.addSlice(new ByteProcessor(width, height, pixels));
+        }
+        return(new ImagePlus("bin", stack));
+    }
+
+
+    /**
+     * Labels of foreground voxels [z][x + y*width], components numbered in raster order
+     */
+    private static int[][] floodFill(ImagePlus img) {
+        int width = img.getWidth(), height = img.getHeight(), depth = img.getNSlices();
+        int[][] labels = new int[depth][width*height];
+        int[] queue = new int[3*width*height*depth];
+        int nbLabels = 0;
+        for (int z = 0; z < depth; z++)
+            for (int i = 0; i < width*height; i++) {
+                if (labels[z][i] != 0 || img.getStack().getProcessor(z+1).get(i) == 0)
+                    continue;
+                labels[z][i] = ++nbLabels;
+                int head = 0, tail = 0;
+                queue[tail++] = i % width;
+                queue[tail++] = i / width;
+                queue[tail++] = z;
+                while (head < tail) {
+                    int x = queue[head++], y = queue[head++], vz = queue[head++];
+                    for (int dz = -1; dz <= 1; dz++)
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++) {
+                                int nx = x+dx, ny = y+dy, nz = vz+dz;
+                                if (nx < 0 || ny < 0 || nz < 0 || nx >= width || ny >= height || nz >= depth)
+                                    continue;
+                                int n = nx + ny*width;
+                                if (labels[nz][n] != 0 || img.getStack().getProcessor(nz+1).get(n) == 0)
+                                    continue;
+                                labels[nz][n] = nbLabels;
+                                queue[tail++] = nx;
+                                queue[tail++] = ny;
+                                queue[tail++] = nz;
+                            }
+                }
+            }
+        return(labels);
+    }
+
+
+    /**
+     * Assert that labeller objects are the flood fill components, return the number of components
+     */
+    private static int assertSameComponents(String label, ImagePlus img) {
+        int width = img.getWidth();
+        int[][] expected = floodFill(img);
+        long[] sizes = new long[width*img.getHeight()*img.getNSlices() + 1];
+        int nbExpected = 0;
+        for (int[] slice: expected)
+            for (int l: slice) {
+                sizes[l]++;
+                nbExpected = Math.max(nbExpected, l);
+            }
+
+        RunLabeller labeller = new RunLabeller(img);
+        DotStore dots = labeller.getDots(TestStacks.calibration(), null, new ObjectsMeasure(false));
+        assertEquals(label + " components", nbExpected, labeller.getNbComponents());
+        assertEquals(label + " objects", nbExpected, dots.getNbObjects());
+        for (int i = 0; i < dots.getNbObjects(); i++) {
+            int l = dots.getLabel(i);
+            assertEquals(label + " label of object " + i, i+1, l);
+            int[] runs = dots.getRuns(i);
+            long count = 0;
+            for (int r = 0; r < runs.length; r += 4)
+                for (int x = runs[r+2]; x <= runs[r+3]; x++, count++)
+                    assertEquals(label + " voxel " + x + "," + runs[r+1] + "," + runs[r], l, expected[runs[r]][x + runs[r+1]*width]);
+            assertEquals(label + " voxels of object " + l, sizes[l], count);
+        }
+        return(nbExpected);
+    }
+
+
+    @Test
+    public void diagonalContactsAreConnected() {
+        // Corner contact in XY, corner contact across slices, runs touching by their ends on the next row, voxels 2 pixels apart
+        assertEquals(1, assertSameComponents("XY diagonal", stack(8, 8, 1, new int[]{1, 1, 0}, new int[]{2, 2, 0})));
+        assertEquals(1, assertSameComponents("Z diagonal", stack(8, 8, 2, new int[]{5, 5, 0}, new int[]{6, 6, 1})));
+        assertEquals(1, assertSameComponents("runs ends", stack(8, 8, 1, new int[]{0, 3, 0}, new int[]{1, 3, 0}, new int[]{2, 4, 0}, new int[]{3, 4, 0})));
+        assertEquals(3, assertSameComponents("gaps", stack(8, 8, 2, new int[]{1, 1, 0}, new int[]{3, 1, 0}, new int[]{1, 3, 1})));
+        // U shape merged on its last row, at the image border
+        assertEquals(1, assertSameComponents("U shape", stack(8, 8, 1, new int[]{0, 5, 0}, new int[]{0, 6, 0}, new int[]{7, 5, 0},
+                new int[]{7, 6, 0}, new int[]{1, 7, 0}, new int[]{6, 7, 0}, new int[]{3, 7, 0}, new int[]{4, 7, 0}, new int[]{2, 7, 0}, new int[]{5, 7, 0})));
+    }
+
+
+    @Test
+    public void emptySlicesSplitComponents() {
+        assertEquals(0, assertSameComponents("empty stack", stack(8, 8, 3)));
+        assertEquals(2, assertSameComponents("empty slice between", stack(8, 8, 3, new int[]{3, 3, 0}, new int[]{3, 3, 2})));
+        assertEquals(1, assertSameComponents("empty first slices", stack(8, 8, 4, new int[]{0, 0, 2}, new int[]{1, 1, 3})));
+    }
+
+
+    @Test
+    public void randomStacksMatchFloodFill() {
+        for (double density: new double[]{0.05, 0.2, 0.35, 0.6})
+            for (long seed = 1; seed <= 3; seed++)
+                assertSameComponents("density " + density + " seed " + seed, randomStack(40, 30, 6, density, seed));
+    }
+}
@@ -0,0 +1,67 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Scratch stacks keep their planes and free their file on close
+ * @author ORION-CIRB
+ */
+public class ScratchStackTest {
+
+    private File dir;
+
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("scratch-test").toFile();
+    }
+
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file: files)
+                file.delete();
+        dir.delete();
+    }
+
+
+    @Test
+    public void planesAreKeptAndFileDeletedOnClose() throws IOException {
+        ImageStack stack = TestStacks.dots(40, 30, 5, 10, 1).getStack();
+        ScratchStack scratch = ScratchStack.create(40, 30, 5, 16, dir.getPath());
+        assertEquals(1, dir.listFiles().length);
+        for (int z = 1; z <= 5; z++)
+            scratch.setPixels(stack.getPixels(z), z);
+        for (int z = 1; z <= 5; z++)
+            assertArrayEquals((short[]) stack.getPixels(z), (short[]) scratch.getPixels(z));
+        scratch.close();
+        assertEquals(0, scratch.getSize());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+
+    @Test
+    public void logInScratchMatchesLogInMemory() throws IOException {
+        ImagePlus img = TestStacks.vessels(64, 48, 6, 3, 2);
+        ImagePlus imgLOG = LaplacianOfGaussian.filter(img, 4, 0);
+        ScratchStack scratch = ScratchStack.create(64, 48, 6, 32, dir.getPath());
+        LaplacianOfGaussian.filter(img, 4, 0, scratch);
+        for (int z = 1; z <= 6; z++)
+            assertArrayEquals((float[]) imgLOG.getStack().getPixels(z), (float[]) scratch.getPixels(z), 0);
+        scratch.close();
+        assertEquals(0, dir.listFiles().length);
+    }
+}
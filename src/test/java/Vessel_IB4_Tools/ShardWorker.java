@@ -0,0 +1,64 @@
+package Vessel_IB4_Tools;
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Shard process of ShardedBatchTest, claims images as Vessel_IB4 does and writes one row per analyzed image
+ * Arguments: results folder, shard index, shards count, lock timeout (minutes), images count,
+ * analysis time (ms), and "crash" to stop without releasing the first claimed image
+ * @author ORION-CIRB
+ */
+public class ShardWorker {
+
+    public static List<String> images(int nbImages) {
+        List<String> images = new ArrayList<>();
+        for (int i = 0; i < nbImages; i++)
+            images.add("/data/image" + i + ".nd");
+        return(images);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        String outDir = args[0];
+        int index = Integer.parseInt(args[1]);
+        ShardedBatch shards = new ShardedBatch(outDir, index, Integer.parseInt(args[2]), Double.parseDouble(args[3]));
+        List<String> images = images(Integer.parseInt(args[4]));
+        long workMs = Long.parseLong(args[5]);
+        boolean crash = args.length > 6 && args[6].equals("crash");
+
+        File partial = new File(shards.getPartialFile());
+        boolean append = partial.exists();
+        try (BufferedWriter results = new BufferedWriter(new FileWriter(partial, append))) {
+            if (!append)
+                results.write("Image name\tShard\n");
+            results.flush();
+            List<String> jobFiles = shards.order(images);
+            while (!jobFiles.isEmpty()) {
+                int nbClaimed = 0;
+                for (String f: jobFiles) {
+                    String rootName = new File(f).getName().replace(".nd", "");
+                    if (!shards.claim(rootName))
+                        continue;
+                    if (crash)
+                        Runtime.getRuntime().halt(3);
+                    Thread.sleep(workMs);
+                    results.write(rootName + "\t" + index + "\n");
+                    results.flush();
+                    shards.done(rootName);
+                    nbClaimed++;
+                }
+                jobFiles = shards.pending(images);
+                if (!jobFiles.isEmpty() && nbClaimed == 0)
+                    shards.await();
+            }
+        }
+        shards.close();
+        System.exit(shards.merge(images) ? 0 : 1);
+    }
+}
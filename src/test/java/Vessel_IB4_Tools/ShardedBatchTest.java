@@ -0,0 +1,182 @@
+package Vessel_IB4_Tools;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Shards run as separate JVMs sharing a results folder analyze every image exactly once
+ * @author ORION-CIRB
+ */
+public class ShardedBatchTest {
+
+    private File dir;
+
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("shards-test").toFile();
+    }
+
+
+    @After
+    public void deleteDir() {
+        delete(dir);
+    }
+
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f: files)
+                delete(f);
+        file.delete();
+    }
+
+
+    private Process startShard(int index, int count, double timeoutMinutes, int nbImages, long workMs, boolean crash) throws IOException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(ShardWorker.class.getName());
+        cmd.add(dir.getPath() + File.separator);
+        cmd.add(Integer.toString(index));
+        cmd.add(Integer.toString(count));
+        cmd.add(Double.toString(timeoutMinutes));
+        cmd.add(Integer.toString(nbImages));
+        cmd.add(Long.toString(workMs));
+        if (crash)
+            cmd.add("crash");
+        return(new ProcessBuilder(cmd).inheritIO().start());
+    }
+
+
+    private static int waitFor(Process process) throws InterruptedException {
+        assertTrue("Shard process timed out", process.waitFor(60, TimeUnit.SECONDS));
+        return(process.exitValue());
+    }
+
+
+    /**
+     * Number of rows of each image in partial results files
+     */
+    private Map<String, Integer> analyzedImages() throws IOException {
+        Map<String, Integer> rows = new HashMap<>();
+        File[] partials = dir.listFiles((d, name) -> name.matches("results_shard\\d+\\.xls"));
+        for (File partial: partials) {
+            List<String> lines = Files.readAllLines(partial.toPath(), Charset.defaultCharset());
+            for (String line: lines.subList(1, lines.size()))
+                rows.merge(line.split("\t")[0], 1, Integer::sum);
+        }
+        return(rows);
+    }
+
+
+    private void assertAllAnalyzedOnce(int nbImages) throws IOException {
+        Map<String, Integer> rows = analyzedImages();
+        assertEquals(nbImages, rows.size());
+        for (Map.Entry<String, Integer> e: rows.entrySet())
+            assertEquals(e.getKey() + " analyzed " + e.getValue() + " times", 1, (int) e.getValue());
+        List<String> merged = Files.readAllLines(new File(dir, "results.xls").toPath(), Charset.defaultCharset());
+        assertEquals(nbImages + 1, merged.size());
+        for (int i = 0; i < nbImages; i++)
+            assertTrue(merged.get(i+1).startsWith("image" + i + "\t"));
+        assertEquals(0, dir.list((d, name) -> name.startsWith("results.xls.tmp")).length);
+    }
+
+
+    @Test
+    public void shardProcessesAnalyzeEachImageOnce() throws Exception {
+        List<Process> processes = new ArrayList<>();
+        for (int k = 0; k < 3; k++)
+            processes.add(startShard(k, 3, 0.02, 12, 100, false));
+        for (Process process: processes)
+            assertEquals(0, waitFor(process));
+        assertAllAnalyzedOnce(12);
+    }
+
+
+    @Test
+    public void heartbeatKeepsLongAnalysisClaimed() throws Exception {
+        // Analysis lasts 2.5 lock timeouts
+        List<Process> processes = new ArrayList<>();
+        for (int k = 0; k < 2; k++)
+            processes.add(startShard(k, 2, 0.01, 4, 1500, false));
+        for (Process process: processes)
+            assertEquals(0, waitFor(process));
+        assertAllAnalyzedOnce(4);
+    }
+
+
+    @Test
+    public void crashedShardImagesAreTakenOver() throws Exception {
+        assertEquals(3, waitFor(startShard(0, 2, 0.01, 6, 0, true)));
+        assertTrue(new File(dir, "locks/image0.lock").exists());
+        List<Process> processes = new ArrayList<>();
+        processes.add(startShard(0, 2, 0.01, 6, 50, false));
+        processes.add(startShard(1, 2, 0.01, 6, 50, false));
+        for (Process process: processes)
+            assertEquals(0, waitFor(process));
+        assertAllAnalyzedOnce(6);
+    }
+
+
+    @Test
+    public void staleLockIsTakenOverByOneShard() throws Exception {
+        int nbShards = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(nbShards);
+        try {
+            for (int run = 0; run < 20; run++) {
+                String rootName = "image" + run;
+                Path lock = new File(dir, "locks/" + rootName + ".lock").toPath();
+                Files.createDirectories(lock.getParent());
+                Files.write(lock, "shard 9 crashed".getBytes(StandardCharsets.UTF_8));
+                Files.setLastModifiedTime(lock, FileTime.fromMillis(System.currentTimeMillis() - 3600000));
+
+                CountDownLatch start = new CountDownLatch(1);
+                List<ShardedBatch> shards = new ArrayList<>();
+                List<Future<Boolean>> claims = new ArrayList<>();
+                for (int k = 0; k < nbShards; k++) {
+                    ShardedBatch shard = new ShardedBatch(dir.getPath() + File.separator, k, nbShards, 1);
+                    shards.add(shard);
+                    claims.add(pool.submit(() -> {
+                        start.await();
+                        return(shard.claim(rootName));
+                    }));
+                }
+                start.countDown();
+                int nbClaimed = 0;
+                for (Future<Boolean> claim: claims)
+                    nbClaimed += claim.get() ? 1 : 0;
+                assertEquals("Claims of stale lock " + rootName, 1, nbClaimed);
+                assertFalse(new String(Files.readAllBytes(lock), StandardCharsets.UTF_8).equals("shard 9 crashed"));
+                for (ShardedBatch shard: shards)
+                    shard.close();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assume;
+import org.junit.Test;
+
+
+/**
+ * Stack thresholds must be the ones ImageJ gives for the same voxels
+ * ImageJ reference: setAutoThreshold with a dark background on all planes put one above the other
+ * CLIJ2 reference, the whole-stack threshold used before when an OpenCL device was present: automaticThreshold,
+ * same levels (method bin + 1, scaled to the stack range) but its own binning on the device, so masks may differ
+ * by voxels within one level (1/255 of the range) of the threshold
+ * @author ORION-CIRB
+ */
+public class StackHistogramTest {
+    
+    /**
+     * DoG of a dots stack, 16-bit, the kind of image thresholded by the analysis
+     */
+    private static ImagePlus filteredDots() {
+        return(new CPUFilterEngine().DOG(TestStacks.dots(96, 80, 12, 60, 1), 1, 2));
+    }
+    
+    
+    /**
+     * LoG of a vessels stack, 32-bit
+     */
+    private static ImagePlus filteredVessels() {
+        return(LaplacianOfGaussian.filter(TestStacks.vessels(96, 80, 12, 4, 2), 4, 0, null));
+    }
+    
+    
+    /**
+     * Planes of stack as a single float processor, its histogram is the stack histogram
+     */
+    private static FloatProcessor concatenate(ImageStack stack) {
+        int size = stack.getWidth()*stack.getHeight();
+        float[] pixels = new float[size*stack.getSize()];
+        for (int z = 0; z < stack.getSize(); z++) {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            for (int i = 0; i < size; i++)
+                pixels[i + z*size] = ip.getf(i);
+        }
+        FloatProcessor fp = new FloatProcessor(stack.getWidth(), stack.getHeight()*stack.getSize(), pixels);
+        fp.resetMinAndMax();
+        return(fp);
+    }
+    
+    
+    private static double imageJThreshold(FloatProcessor fp, String method) {
+        FloatProcessor ip = (FloatProcessor) fp.duplicate();
+        ip.resetMinAndMax();
+        ip.setAutoThreshold(AutoThresholder.Method.valueOf(method), true, ImageProcessor.NO_LUT_UPDATE);
+        return(ip.getMinThreshold());
+    }
+    
+    
+    @Test
+    public void thresholdValueMatchesImageJ() {
+        for (ImagePlus img: new ImagePlus[]{filteredDots(), filteredVessels()}) {
+            FloatProcessor all = concatenate(img.getStack());
+            // Float rounding of the returned value only
+            double tolerance = 1e-6 * (all.getMax() - all.getMin());
+            StackHistogram histo = new StackHistogram(img.getStack());
+            for (String method: AutoThresholder.getMethods())
+                assertEquals(method + " " + img.getBitDepth() + "-bit", imageJThreshold(all, method), histo.thresholdValue(method), tolerance);
+        }
+    }
+    
+    
+    @Test
+    public void binaryMaskMatchesImageJ() {
+        for (ImagePlus img: new ImagePlus[]{filteredDots(), filteredVessels()})
+            checkBinaryMask(img);
+    }
+    
+    
+    private void checkBinaryMask(ImagePlus img) {
+        FloatProcessor all = concatenate(img.getStack());
+        int size = img.getWidth()*img.getHeight();
+        for (String method: new String[]{"Triangle", "Otsu", "Li"}) {
+            double th = imageJThreshold(all, method);
+            ImagePlus imgBin = CPUFilterEngine.binarize(img, new StackHistogram(img.getStack()).thresholdValue(method));
+            for (int z = 0; z < img.getNSlices(); z++) {
+                byte[] expected = new byte[size];
+                for (int i = 0; i < size; i++)
+                    expected[i] = (byte) ((all.getf(i + z*size) >= th) ? 1 : 0);
+                assertArrayEquals(method + " slice " + (z+1), expected, (byte[]) imgBin.getStack().getPixels(z+1));
+            }
+        }
+    }
+    
+    
+    @Test
+    public void thresholdWithinOneLevelOfCLIJ2() {
+        CLIJ2 clij2 = null;
+        try {
+            clij2 = CLIJ2.getInstance();
+        } catch (RuntimeException | LinkageError ex) {
+            Assume.assumeNoException("No OpenCL device", ex);
+        }
+        Assume.assumeTrue("No OpenCL device", clij2 != null && clij2.getGPUName() != null);
+        for (ImagePlus img: new ImagePlus[]{filteredDots(), filteredVessels()}) {
+            FloatProcessor all = concatenate(img.getStack());
+            double level = (all.getMax() - all.getMin()) / (StackHistogram.NBINS - 1);
+            StackHistogram histo = new StackHistogram(img.getStack());
+            for (String method: AutoThresholder.getMethods()) {
+                ClearCLBuffer imgCL = clij2.push(img);
+                ClearCLBuffer imgCLBin = clij2.create(imgCL);
+                clij2.automaticThreshold(imgCL, imgCLBin, method);
+                ImagePlus imgBin = clij2.pull(imgCLBin);
+                clij2.release(imgCL);
+                clij2.release(imgCLBin);
+                
+                float th = histo.thresholdValue(method);
+                int nbDiffs = 0;
+                for (int z = 1; z <= img.getNSlices(); z++) {
+                    ImageProcessor ip = img.getStack().getProcessor(z);
+                    ImageProcessor ipBin = imgBin.getStack().getProcessor(z);
+                    for (int i = 0; i < ip.getPixelCount(); i++) {
+                        float v = ip.getf(i);
+                        if ((v >= th) != (ipBin.getf(i) != 0)) {
+                            nbDiffs++;
+                            assertTrue(method + " " + img.getBitDepth() + "-bit voxel " + v + " classified differently, threshold " + th,
+                                    Math.abs(v - th) <= level * (1 + 1e-4));
+                        }
+                    }
+                }
+                System.out.println(method + " " + img.getBitDepth() + "-bit: " + nbDiffs + " voxels differ from CLIJ2");
+            }
+        }
+    }
+    
+    
+    @Test
+    public void incrementalHistogramMatchesStackHistogram() {
+        ImageStack stack = filteredDots().getStack();
+        StackHistogram histo = new StackHistogram(1);
+        // Two blocks per plane
+        for (int pass = 0; pass < 2; pass++) {
+            for (int z = 1; z <= stack.getSize(); z++) {
+                ImageProcessor ip = stack.getProcessor(z);
+                for (int y0 = 0; y0 < stack.getHeight(); y0 += stack.getHeight()/2) {
+                    ip.setRoi(0, y0, stack.getWidth(), Math.min(stack.getHeight()/2, stack.getHeight()-y0));
+                    if (pass == 0)
+                        histo.addRange(ip.crop());
+                    else
+                        histo.add(ip.crop());
+                }
+            }
+        }
+        assertArrayEquals(new StackHistogram(stack).getHistogram(), histo.getHistogram());
+    }
+}
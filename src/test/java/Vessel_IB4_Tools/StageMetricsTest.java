@@ -0,0 +1,65 @@
+package Vessel_IB4_Tools;
+
+
+import java.util.stream.IntStream;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+
+/**
+ * Stage metrics count the work of the stage thread and of its parallel streams, not of other threads
+ * @author ORION-CIRB
+ */
+public class StageMetricsTest {
+
+    private static long work(int nbBlocks) {
+        long sum = 0;
+        for (int i = 0; i < nbBlocks; i++) {
+            byte[] block = new byte[1024*1024];
+            for (int j = 0; j < block.length; j += 64)
+                sum += block[j] + j;
+        }
+        return(sum);
+    }
+
+
+    @Test
+    public void workOfParallelStreamsIsCounted() {
+        StageMetrics metrics = new StageMetrics(false);
+        StageMetrics.Stage stage = metrics.start("parallel");
+        long sum = IntStream.range(0, 8).parallel().mapToLong(i -> work(16)).sum();
+        stage.stop();
+        double[] values = metrics.getStages().get("parallel");
+        assertTrue("Allocated " + values[2] + " MB", values[2] >= 120);
+        assertTrue("CPU time " + values[1] + " ms", values[1] > 0);
+        assertTrue("Peak heap not recorded", Double.isNaN(values[3]));
+        assertTrue(sum > 0);
+    }
+
+
+    @Test
+    public void workOfOtherThreadsIsNotCounted() throws InterruptedException {
+        // An image read ahead by another thread while this one is analyzed
+        Thread reader = new Thread(() -> work(256));
+        StageMetrics metrics = new StageMetrics(false);
+        StageMetrics.Stage stage = metrics.start("analysis");
+        reader.start();
+        reader.join();
+        stage.stop();
+        double allocated = metrics.getStages().get("analysis")[2];
+        assertTrue("Allocated " + allocated + " MB", allocated < 16);
+    }
+
+
+    @Test
+    public void peakHeapIsRecordedForSingleImage() {
+        StageMetrics metrics = new StageMetrics(true);
+        StageMetrics.Stage stage = metrics.start("single");
+        work(16);
+        stage.stop();
+        double peak = metrics.getStages().get("single")[3];
+        assertFalse(Double.isNaN(peak));
+        assertTrue("Peak heap " + peak + " MB", peak > 0);
+    }
+}
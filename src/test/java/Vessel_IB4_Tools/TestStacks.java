@@ -0,0 +1,94 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+
+/**
+ * Small synthetic 16-bit stacks used by tests, same seed gives same stack
+ * @author ORION-CIRB
+ */
+public class TestStacks {
+    
+    private static final int BACKGROUND = 100;
+    private static final double NOISE = 10;
+    
+    
+    /**
+     * Stack with nbDots Gaussian spots of sigma 1 to 1.5 pixels
+     */
+    public static ImagePlus dots(int width, int height, int depth, int nbDots, long seed) {
+        Random rnd = new Random(seed);
+        float[][] data = background(width, height, depth, rnd);
+        for (int n = 0; n < nbDots; n++) {
+            int xc = rnd.nextInt(width), yc = rnd.nextInt(height), zc = rnd.nextInt(depth);
+            double sigma = 1 + 0.5*rnd.nextDouble();
+            int r = (int) Math.ceil(3*sigma);
+            for (int z = Math.max(0, zc-r); z <= Math.min(depth-1, zc+r); z++)
+                for (int y = Math.max(0, yc-r); y <= Math.min(height-1, yc+r); y++)
+                    for (int x = Math.max(0, xc-r); x <= Math.min(width-1, xc+r); x++) {
+                        double d2 = (x-xc)*(x-xc) + (y-yc)*(y-yc) + (z-zc)*(z-zc);
+                        data[z][x+y*width] += 500*Math.exp(-d2/(2*sigma*sigma));
+                    }
+        }
+        return(toImage("dots", data, width, height));
+    }
+    
+    
+    /**
+     * Stack with nbVessels straight tubes of radius 3 to 8 pixels crossing the image along x or y
+     */
+    public static ImagePlus vessels(int width, int height, int depth, int nbVessels, long seed) {
+        Random rnd = new Random(seed);
+        float[][] data = background(width, height, depth, rnd);
+        for (int n = 0; n < nbVessels; n++) {
+            boolean alongX = rnd.nextBoolean();
+            double c = rnd.nextDouble()*(alongX ? height : width), zc = rnd.nextDouble()*depth;
+            double radius = 3 + 5*rnd.nextDouble();
+            for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++) {
+                        double d = (alongX ? y : x) - c;
+                        if (d*d + (z-zc)*(z-zc) <= radius*radius)
+                            data[z][x+y*width] = BACKGROUND + 1000;
+                    }
+        }
+        return(toImage("vessels", data, width, height));
+    }
+    
+    
+    public static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = 0.5;
+        cal.pixelDepth = 1;
+        cal.setUnit("microns");
+        return(cal);
+    }
+    
+    
+    private static float[][] background(int width, int height, int depth, Random rnd) {
+        float[][] data = new float[depth][width*height];
+        for (float[] plane: data)
+            for (int i = 0; i < plane.length; i++)
+                plane[i] = (float) (BACKGROUND + NOISE*rnd.nextGaussian());
+        return(data);
+    }
+    
+    
+    private static ImagePlus toImage(String title, float[][] data, int width, int height) {
+        ImageStack stack = new ImageStack(width, height);
+        for (float[] plane: data) {
+            short[] pixels = new short[plane.length];
+            for (int i = 0; i < plane.length; i++)
+                pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(plane[i])));
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setCalibration(calibration());
+        return(img);
+    }
+}
@@ -0,0 +1,170 @@
+package Vessel_IB4_Tools;
+
+
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import mcib3d.geom2.Objects3DIntPopulation;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Detection steps streamed plane by plane or written to scratch files give the same objects as in memory
+ * @author ORION-CIRB
+ */
+public class ToolsTest {
+
+    private File dir;
+    private Tools tools;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("tools-test").toFile();
+        tools = new Tools();
+        tools.cal = TestStacks.calibration();
+        tools.pixVol = tools.cal.pixelWidth * tools.cal.pixelHeight * tools.cal.pixelDepth;
+    }
+
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file: files)
+                file.delete();
+        dir.delete();
+    }
+
+
+    /**
+     * Thresholding while labelling gives the components of the binary stack, RunLabellerTest checks the components
+     */
+    @Test
+    public void planeLabellingMatchesBinaryMask() throws IOException {
+        ImagePlus img = TestStacks.dots(96, 80, 12, 60, 1);
+        ImagePlus imgDOG = tools.DOG(img, 1, 2);
+        float th = tools.histogram(imgDOG.getStack()).thresholdValue("Triangle");
+        RunLabeller labeller = tools.label(imgDOG.getStack(), th, RoiMask.load(dir.getPath() + "/none.zip", 96, 80));
+        RunLabeller labellerBin = new RunLabeller(CPUFilterEngine.binarize(imgDOG, th));
+        assertTrue(labellerBin.getNbComponents() > 0);
+        assertEquals(labellerBin.getNbComponents(), labeller.getNbComponents());
+        assertEquals(labellerBin.getRunsBytes(), labeller.getRunsBytes());
+    }
+
+
+    /**
+     * Objects of a filtered image thresholded with method, as runs
+     */
+    private DotStore objects(ImagePlus imgFilter, String method, RoiMask roiMask) {
+        float th = tools.histogram(imgFilter.getStack()).thresholdValue(method);
+        RunLabeller labeller = tools.label(imgFilter.getStack(), th, roiMask);
+        tools.flushCloseImg(imgFilter);
+        return(labeller.getDots(tools.cal, null, new ObjectsMeasure(false)));
+    }
+    
+    
+    private static void assertSameRuns(String label, DotStore expected, DotStore actual) {
+        assertTrue(label + " no object", expected.getNbObjects() > 0);
+        assertEquals(label + " objects", expected.getNbObjects(), actual.getNbObjects());
+        for (int i = 0; i < expected.getNbObjects(); i++) {
+            assertEquals(label + " label of object " + i, expected.getLabel(i), actual.getLabel(i));
+            assertArrayEquals(label + " runs of object " + i, expected.getRuns(i), actual.getRuns(i));
+        }
+    }
+
+
+    @Test
+    public void tiledObjectsMatchWholeImageObjects() throws IOException {
+        // Blocks with the LoG halo of 4 sigma (80 pixels) would not cover the whole image
+        ImagePlus imgVessel = TestStacks.vessels(256, 256, 6, 6, 3);
+        ImagePlus imgGene = TestStacks.dots(256, 256, 6, 300, 1);
+        RoiMask roiMask = RoiMask.load(dir.getPath() + "/none.zip", 256, 256);
+        DotStore vessels = objects(tools.filterVessels(imgVessel), "Triangle", roiMask);
+        DotStore dots = objects(tools.filterGenes(imgGene), "Triangle", roiMask);
+        tools.blockSize = 64;
+        tools.scratchDir = dir.getPath();
+        assertSameRuns("vessels", vessels, objects(tools.filterVessels(imgVessel), "Triangle", roiMask));
+        assertSameRuns("dots", dots, objects(tools.filterGenes(imgGene), "Triangle", roiMask));
+        assertEquals(0, dir.listFiles().length);
+    }
+
+
+    @Test
+    public void tiledFilterIsWrittenToScratch() {
+        tools.blockSize = 32;
+        tools.scratchDir = dir.getPath();
+        ImagePlus imgDOG = tools.filterGenes(TestStacks.dots(96, 80, 12, 60, 1));
+        assertTrue(imgDOG.getStack() instanceof ScratchStack);
+        assertEquals(12, imgDOG.getNSlices());
+        assertEquals(1, dir.listFiles().length);
+        tools.flushCloseImg(imgDOG);
+        assertEquals(0, dir.listFiles().length);
+    }
+
+
+    @Test
+    public void slabDotsMatchWholeStackDots() throws IOException {
+        ImagePlus img = TestStacks.dots(96, 80, 24, 120, 2);
+        RoiMask roiMask = RoiMask.load(dir.getPath() + "/none.zip", 96, 80);
+        DotStore dots = tools.findGenes(img, roiMask);
+        tools.slabDepth = 8;
+        tools.scratchDir = dir.getPath();
+        DotStore slabDots = tools.findGenes(img, roiMask);
+        assertSameRuns("slab dots", dots, slabDots);
+        ObjectsMeasure measure = dots.getMeasure(), slabMeasure = slabDots.getMeasure();
+        for (int i = 0; i < dots.getNbObjects(); i++) {
+            int label = dots.getLabel(i);
+            assertEquals("voxels of dot " + label, measure.getCount(label), slabMeasure.getCount(label));
+            assertEquals("intensity of dot " + label, measure.getSumIntensity(label), slabMeasure.getSumIntensity(label), 1e-9);
+            assertEquals("min intensity of dot " + label, measure.getMinIntensity(label), slabMeasure.getMinIntensity(label), 0);
+            assertEquals("max intensity of dot " + label, measure.getMaxIntensity(label), slabMeasure.getMaxIntensity(label), 0);
+            assertArrayEquals("centroid of dot " + label, measure.getCentroid(label), slabMeasure.getCentroid(label), 1e-9);
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+
+    @Test
+    public void dotsDistancesMatchWholeStackDistanceMap() throws IOException {
+        ImagePlus imgVessel = TestStacks.vessels(96, 80, 12, 4, 3);
+        ImagePlus imgGene = TestStacks.dots(96, 80, 12, 60, 1);
+        RoiMask roiMask = RoiMask.load(dir.getPath() + "/none.zip", 96, 80);
+        Objects3DIntPopulation vesselsPop = objects(tools.filterVessels(imgVessel), "Triangle", roiMask).toPopulation();
+        DotStore dots = objects(tools.filterGenes(imgGene), "Triangle", roiMask);
+        byte[][] mask = new byte[12][96*80];
+        OverlayWriter.Layer vessels = OverlayWriter.layer(vesselsPop, 12);
+        for (int z = 0; z < 12; z++)
+            vessels.paint(mask[z], z, 96, (byte) 1);
+        float[][] dist = DistanceMap.squaredEDT(mask, 96, 80, tools.cal.pixelWidth, tools.cal.pixelHeight, tools.cal.pixelDepth);
+        
+        DistanceMap.Columns dotsDist = tools.vesselsDistance(vesselsPop, imgGene, Arrays.asList(dots));
+        double dil = 2;
+        long in = 0, out = 0;
+        for (int i = 0; i < dots.getNbObjects(); i++) {
+            int[] runs = dots.getRuns(i);
+            for (int r = 0; r < runs.length; r += 4)
+                for (int x = runs[r+2]; x <= runs[r+3]; x++) {
+                    int z = runs[r], column = x + runs[r+1]*96;
+                    assertTrue("column of dot voxel", dotsDist.indexOf(column) >= 0);
+                    assertEquals(dist[z][column], dotsDist.get(z, dotsDist.indexOf(column)), 0);
+                    if (dist[z][column] <= dil*dil)
+                        in++;
+                    else
+                        out++;
+                }
+        }
+        assertTrue(in > 0 && out > 0);
+        List<DotStore> inOut = tools.classifyDots(dots, dotsDist, dil, imgGene);
+        assertEquals(in, inOut.get(0).getMeasure().getTotalCount());
+        assertEquals(out, inOut.get(1).getMeasure().getTotalCount());
+    }
+}